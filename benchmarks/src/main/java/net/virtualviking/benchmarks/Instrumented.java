@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import net.virtualviking.metjo.MethodEntryListener;
+import net.virtualviking.metjo.MetjoTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads a copy of {@link Target} instrumented the same way the agent would do it, without having to run
+ * the benchmarks with the agent attached.
+ */
+public class Instrumented {
+    private static final String TARGET = Target.class.getName();
+
+    private static class IsolatingLoader extends ClassLoader {
+        private IsolatingLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Mode is one of "none" (not instrumented), "timed" (every call timed) or "sampled" (one call in ten
+     * timed). When instrumented, the argument of withArg is captured.
+     */
+    public static Workload load(String mode) throws Exception {
+        if("none".equals(mode)) {
+            return new Target();
+        }
+        Map<Object, Object> config = new HashMap<>();
+        config.put("includes", Collections.singletonList(TARGET + ".*"));
+        Map<String, String> parameter = new HashMap<>();
+        parameter.put("name", "bench.arg");
+        parameter.put("parameter", TARGET + ".withArg.0");
+        parameter.put("aggregation", "summation");
+        config.put("parameters", Collections.singletonList(parameter));
+        if("sampled".equals(mode)) {
+            Map<String, Object> sampling = new HashMap<>();
+            sampling.put("pattern", TARGET + ".*");
+            sampling.put("rate", 10);
+            config.put("sampling", Collections.singletonList(sampling));
+        } else if(!"timed".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        MetjoTransformer transformer = new MetjoTransformer(new MetricRegistry(), config);
+        IsolatingLoader loader = new IsolatingLoader(Instrumented.class.getClassLoader());
+        byte[] bytes = transformer.transform(loader, TARGET.replace('.', '/'), null, null, classBytes(TARGET));
+        if(bytes == null) {
+            throw new IllegalStateException("Target was not instrumented");
+        }
+        return (Workload) loader.define(TARGET, bytes).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Returns the id the probes of a method use, or -1 if it isn't instrumented.
+     */
+    public static int methodId(String methodName) {
+        for(int i = MethodEntryListener.getMethodCount() - 1; i >= 0; --i) {
+            if(MethodEntryListener.getMethod(i).getFullMethodName().equals(TARGET + "." + methodName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static byte[] classBytes(String className) throws IOException {
+        try (InputStream in = Instrumented.class.getClassLoader().getResourceAsStream(className.replace('.', '/') + ".class")) {
+            return readFully(in);
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+import net.virtualviking.metjo.PatternMatcher;
+import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Matching method names against the include patterns with the compiled automaton, compared to running
+ * a commons-io wildcard filter per pattern the way the transformer used to. The names are those of every
+ * class of the JDK running the benchmark, some 20000 of them, with a few common method names, and the
+ * patterns are made from their packages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatcherBenchmark {
+    private static final String[] METHODS = { "get", "run", "<init>", "toString", "equals", "read" };
+
+    @Param({"5", "50", "500"})
+    public int patterns;
+
+    private PatternMatcher matcher;
+
+    private WildcardFileFilter[] filters;
+
+    private String[] names;
+
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> classes = jdkClasses();
+        names = new String[classes.size()];
+        for(int i = 0; i < names.length; ++i) {
+            names[i] = classes.get(i) + "." + METHODS[i % METHODS.length];
+        }
+
+        // Whole packages, classes by suffix and methods by prefix, the kinds of patterns people write.
+        //
+        TreeSet<String> packages = new TreeSet<>();
+        for(String c : classes) {
+            packages.add(c.substring(0, c.lastIndexOf('.')));
+        }
+        List<String> pkgs = new ArrayList<>(packages);
+        Collections.shuffle(pkgs, new Random(42));
+        List<String> p = new ArrayList<>();
+        for(int i = 0; i < patterns; ++i) {
+            String pkg = pkgs.get(i % pkgs.size());
+            switch (i % 3) {
+                case 0:
+                    p.add(pkg + ".*");
+                    break;
+                case 1:
+                    p.add(pkg + ".*Impl.get*");
+                    break;
+                default:
+                    p.add(pkg + ".*.rea?");
+            }
+        }
+        matcher = new PatternMatcher(p);
+        filters = new WildcardFileFilter[p.size()];
+        for(int i = 0; i < filters.length; ++i) {
+            filters[i] = new WildcardFileFilter(p.get(i));
+        }
+    }
+
+    /**
+     * Lists the classes of the running JDK, from rt.jar up to Java 8 and from the runtime image after that.
+     */
+    static List<String> jdkClasses() throws IOException {
+        List<String> classes = new ArrayList<>();
+        File rt = new File(System.getProperty("java.home"), "lib/rt.jar");
+        if(rt.exists()) {
+            try (JarFile jar = new JarFile(rt)) {
+                for(JarEntry e : Collections.list(jar.entries())) {
+                    addClass(classes, e.getName());
+                }
+            }
+        } else {
+            Path modules = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("/modules");
+            try (Stream<Path> paths = Files.walk(modules)) {
+                paths.forEach(path -> {
+                    // /modules/<module>/<package path>/<class>.class
+                    //
+                    if(path.getNameCount() > 2) {
+                        addClass(classes, path.subpath(2, path.getNameCount()).toString());
+                    }
+                });
+            }
+        }
+        Collections.sort(classes);
+        return classes;
+    }
+
+    private static void addClass(List<String> classes, String path) {
+        if(path.endsWith(".class") && path.indexOf('/') > 0 && !path.endsWith("-info.class")) {
+            classes.add(path.substring(0, path.length() - 6).replace('/', '.'));
+        }
+    }
+
+    private String nextName() {
+        if(++next == names.length) {
+            next = 0;
+        }
+        return names[next];
+    }
+
+    @Benchmark
+    public boolean automaton() {
+        return matcher.matches(nextName());
+    }
+
+    @Benchmark
+    public boolean wildcardFilters() {
+        File f = new File(nextName());
+        for(WildcardFileFilter filter : filters) {
+            if(filter.accept(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
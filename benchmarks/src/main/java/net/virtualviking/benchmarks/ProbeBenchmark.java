@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+import net.virtualviking.metjo.MethodEntryListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per call of an instrumented trivial method compared to an uninstrumented one, of capturing a
+ * parameter, and of the entry and exit probes on their own. Each benchmark runs at 1, 4 and 16 threads,
+ * since the probes share the timers of the methods between threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class ProbeBenchmark {
+    @Param({"none", "timed", "sampled"})
+    public String mode;
+
+    private Workload workload;
+
+    private int tinyId;
+
+    @State(Scope.Thread)
+    public static class Values {
+        private long next;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Instrumented.load(mode);
+        tinyId = Instrumented.methodId("tiny");
+    }
+
+    @Benchmark
+    public long tinyMethod(Values values) {
+        return workload.tiny(values.next++);
+    }
+
+    @Benchmark
+    public long capturedParameter(Values values) {
+        return workload.withArg(values.next++);
+    }
+
+    /**
+     * What the probes of an instrumented method do, without the method.
+     */
+    @Benchmark
+    public void entryAndExitProbes() {
+        if(tinyId >= 0) {
+            MethodEntryListener.onMethodEntry(tinyId);
+            MethodEntryListener.onMethodExit();
+        }
+    }
+
+    @Threads(1)
+    public static class Threads1 extends ProbeBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends ProbeBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends ProbeBenchmark {
+    }
+}
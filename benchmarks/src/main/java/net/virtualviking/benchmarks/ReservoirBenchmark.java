@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Timer;
+import net.virtualviking.metjo.HdrReservoir;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of updating a timer shared by several threads, with Dropwizard's default reservoir compared to
+ * the HdrHistogram one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class ReservoirBenchmark {
+    @Param({"exponential", "hdr"})
+    public String reservoir;
+
+    private Timer timer;
+
+    @State(Scope.Thread)
+    public static class Durations {
+        private long seed = System.nanoTime() | 1;
+
+        /**
+         * Durations between roughly a microsecond and a second, so that the reservoirs see a realistic spread.
+         */
+        private long next() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return 1000L << ((seed >>> 1) % 20);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        timer = "hdr".equals(reservoir)
+                ? new Timer(new HdrReservoir(2))
+                : new Timer(new ExponentiallyDecayingReservoir());
+    }
+
+    @Benchmark
+    public void update(Durations durations) {
+        timer.update(durations.next(), TimeUnit.NANOSECONDS);
+    }
+
+    @Threads(1)
+    public static class Threads1 extends ReservoirBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends ReservoirBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends ReservoirBenchmark {
+    }
+}
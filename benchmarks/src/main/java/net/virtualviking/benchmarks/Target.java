@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+/**
+ * Methods doing next to nothing, so that what the benchmarks measure is the cost of the probes. They can't
+ * be completely empty, since the transformer leaves empty methods alone.
+ */
+public class Target implements Workload {
+    @Override
+    public long tiny(long value) {
+        return value + 1;
+    }
+
+    @Override
+    public long withArg(long value) {
+        return value + 1;
+    }
+}
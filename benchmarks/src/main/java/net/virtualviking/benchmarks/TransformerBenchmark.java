@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import net.virtualviking.metjo.MetjoTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * Classes per second MetjoTransformer gets through, running over the classes of a jar the way it would
+ * when they are loaded. By default the classes of SnakeYAML are used. Pass -p jar=... -p packagePrefix=...
+ * to use an application jar instead.
+ *
+ * "all" instruments every method, while "none" matches nothing and measures the cost of ruling out
+ * classes that aren't instrumented.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformerBenchmark {
+    @Param({""})
+    public String jar;
+
+    @Param({"org/yaml/snakeyaml/"})
+    public String packagePrefix;
+
+    @Param({"all", "none"})
+    public String includes;
+
+    private MetjoTransformer transformer;
+
+    private ClassLoader loader;
+
+    private String[] names;
+
+    private byte[][] classes;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        File file = jar.isEmpty()
+                ? new File(Yaml.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                : new File(jar);
+        List<String> n = new ArrayList<>();
+        List<byte[]> c = new ArrayList<>();
+        try (JarFile jf = new JarFile(file)) {
+            for(Enumeration<JarEntry> entries = jf.entries(); entries.hasMoreElements(); ) {
+                JarEntry e = entries.nextElement();
+                if(e.getName().startsWith(packagePrefix) && e.getName().endsWith(".class")) {
+                    try (InputStream in = jf.getInputStream(e)) {
+                        n.add(e.getName().substring(0, e.getName().length() - ".class".length()));
+                        c.add(Instrumented.readFully(in));
+                    }
+                }
+            }
+        }
+        if(n.isEmpty()) {
+            throw new IllegalStateException("No classes in " + file + " starting with " + packagePrefix);
+        }
+        names = n.toArray(new String[n.size()]);
+        classes = c.toArray(new byte[c.size()][]);
+        loader = new URLClassLoader(new URL[] { file.toURI().toURL() }, getClass().getClassLoader());
+        Map<Object, Object> config = new HashMap<>();
+        config.put("includes", "all".equals(includes) ? Collections.singletonList("*") : Collections.emptyList());
+        transformer = new MetjoTransformer(new MetricRegistry(), config);
+    }
+
+    @Benchmark
+    public byte[] transform() throws IllegalClassFormatException {
+        int i = next;
+        next = i + 1 == names.length ? 0 : i + 1;
+        return transformer.transform(loader, names[i], null, null, classes[i]);
+    }
+}
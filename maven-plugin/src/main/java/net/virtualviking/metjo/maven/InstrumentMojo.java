@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.maven;
+
+import net.virtualviking.metjo.MetjoException;
+import net.virtualviking.metjo.OfflineInstrumenter;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instruments the compiled classes of a project in place, the same way {@link OfflineInstrumenter} does.
+ * Every module gets a table of methods of its own, which is given its ids at runtime, so modules can be
+ * instrumented independently.
+ *
+ * <pre>
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;net.virtualviking&lt;/groupId&gt;
+ *   &lt;artifactId&gt;metjo-maven-plugin&lt;/artifactId&gt;
+ *   &lt;version&gt;1.0-SNAPSHOT&lt;/version&gt;
+ *   &lt;configuration&gt;
+ *     &lt;config&gt;src/main/metjo/metjo.yaml&lt;/config&gt;
+ *   &lt;/configuration&gt;
+ *   &lt;executions&gt;
+ *     &lt;execution&gt;
+ *       &lt;goals&gt;&lt;goal&gt;instrument&lt;/goal&gt;&lt;/goals&gt;
+ *     &lt;/execution&gt;
+ *   &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES,
+        requiresDependencyResolution = ResolutionScope.COMPILE)
+public class InstrumentMojo extends AbstractMojo {
+    @Parameter(property = "metjo.config", required = true)
+    private File config;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    @Parameter(property = "metjo.threads")
+    private int threads;
+
+    @Parameter(property = "metjo.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if(skip || !classesDirectory.isDirectory()) {
+            return;
+        }
+        // Classes that weren't recompiled still carry their probes, and can't be instrumented again.
+        //
+        if(OfflineInstrumenter.isInstrumented(classesDirectory)) {
+            getLog().warn(classesDirectory + " is already instrumented. Run a clean build to instrument it again.");
+            return;
+        }
+        List<File> classpath = new ArrayList<>();
+        try {
+            for(String element : project.getCompileClasspathElements()) {
+                classpath.add(new File(element));
+            }
+        } catch(DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException("Could not resolve the class path", e);
+        }
+        try {
+            OfflineInstrumenter instrumenter = new OfflineInstrumenter(config, classpath,
+                    threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+            try {
+                instrumenter.instrument(classesDirectory, classesDirectory);
+            } finally {
+                instrumenter.close();
+            }
+        } catch(MetjoException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch(IOException e) {
+            throw new MojoExecutionException("Instrumentation failed", e);
+        }
+    }
+}
@@ -17,12 +17,21 @@
 package net.virtualviking.metjo;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import net.virtualviking.metjo.reporters.ConsoleFactory;
+import net.virtualviking.metjo.reporters.NioWavefrontFactory;
+import net.virtualviking.metjo.reporters.PrometheusFactory;
 import net.virtualviking.metjo.reporters.WavefrontFactory;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -35,36 +44,221 @@ public class Agent {
     static {
         factories.put("wavefront", new WavefrontFactory());
         factories.put("console", new ConsoleFactory());
+        factories.put("wavefront-nio", new NioWavefrontFactory());
+        factories.put("prometheus", new PrometheusFactory());
     }
 
+    private static boolean started;
+
+    private static boolean offlineStarted;
+
+    // Sets up the metrics of methods instrumented offline, or null if profiling is disabled.
+    //
+    private static MetjoTransformer offlineTransformer;
+
     public static void premain(String agentArgs, Instrumentation inst) throws Exception {
-        String configFile = System.getenv("METJO_CONFIG");
+        start(System.getenv("METJO_CONFIG"), inst, false);
+    }
+
+    /**
+     * Entry point when the agent is attached to a running JVM. The path to the configuration file is passed
+     * as the agent argument, falling back to METJO_CONFIG.
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) throws Exception {
+        start(agentArgs != null && !agentArgs.isEmpty() ? agentArgs : System.getenv("METJO_CONFIG"), inst, true);
+    }
+
+    private static synchronized void start(String configFile, Instrumentation inst, boolean attached) throws Exception {
+        if(started) {
+            System.err.println("INFO: Metjo is already running. Ignoring.");
+            return;
+        }
         if(configFile == null) {
             System.err.println("INFO: Property metjo.config was not specified. Profiling is disabled.");
             return;
         }
-        FileInputStream in = new FileInputStream(configFile);
-        Yaml y = new Yaml();
-        Map<Object, Object> config = (Map<Object, Object>) y.load(in);
-        in.close();
+        Map<Object, Object> config = loadConfig(configFile);
+        MetjoTransformer transformer = startReporting(config);
+        if(transformer == null) {
+            return;
+        }
+
+        // The agent leaves classes that were instrumented offline alone, but sets up the metrics of their
+        // methods when their tables are registered.
+        //
+        offlineTransformer = transformer;
+        if(config.containsKey("cache")) {
+            try {
+                transformer.setCache(new BytecodeCache(transformer.getRegistry(), (Map<Object, Object>) config.get("cache")));
+            } catch(MetjoException e) {
+                System.err.println("WARNING: " + e.getMessage() + ". Caching is disabled.");
+            }
+        }
+        inst.addTransformer(transformer, true);
+        if(!inst.isRetransformClassesSupported()) {
+            if(attached) {
+                System.err.println("WARNING: JVM doesn't support retransformation. Only classes loaded from now on are profiled.");
+            }
+            if(config.containsKey("governor")) {
+                System.err.println("WARNING: JVM doesn't support retransformation. Overhead governor is disabled.");
+            }
+            return;
+        }
+
+        // When attached to a running JVM, classes matching the patterns may already be loaded. Classes that
+        // are only selected through @Timed are not picked up, since we would have to scan every loaded class.
+        //
+        if(attached) {
+            transformer.retransformMatching(inst);
+        }
+        if(config.containsKey("governor")) {
+            new OverheadGovernor(inst, transformer.getRegistry(), (Map<Object, Object>) config.get("governor")).start();
+        }
+        Number period = (Number) config.get("configCheckPeriod");
+        if(period == null) {
+            period = 5;
+        }
+        if(period.longValue() > 0) {
+            new ConfigWatcher(configFile, transformer, inst).start(period.longValue());
+        }
+    }
+
+    /**
+     * Registers a table of methods instrumented by {@link OfflineInstrumenter}. Called when the class
+     * holding the table is initialized, which happens the first time one of the methods runs. Unless the
+     * agent is running, this sets up metrics the first time it's called, with the configuration from
+     * METJO_CONFIG, falling back to the one the classes were instrumented with. Configuration changes
+     * require a restart, and the overhead governor is not available, since both depend on retransformation.
+     *
+     * @param table the class holding the table, next to which the table is found as id, name and full name.
+     * @param count the number of methods in the table.
+     * @return the id of the first method of the table. The others follow in order.
+     */
+    public static synchronized int registerOfflineMethods(Class<?> table, int count) {
+        if(!started && !offlineStarted) {
+            offlineStarted = true;
+            startOffline(table.getClassLoader());
+        }
+        // Every table gets ids of its own, so tables of separate runs never share one.
+        //
+        int base = MethodEntryListener.reserveBlock(count);
+        List<String[]> methods = Collections.emptyList();
+        try {
+            methods = readOfflineMethods(table);
+        } catch(Exception e) {
+            System.err.println("WARNING: Could not read the methods instrumented offline: " + e);
+        }
+        for(String[] method : methods) {
+            int id = Integer.parseInt(method[0]);
+            if(id >= 0 && id < count) {
+                if(offlineTransformer != null) {
+                    offlineTransformer.registerMethod(base + id, method[1], method[2]);
+                } else {
+                    MethodEntryListener.registerMethod(new MethodMetrics(method[1], method[2], new Timer()), base + id);
+                }
+            }
+        }
+        // The probes are there regardless, so they need somewhere to go.
+        //
+        for(int id = base; id < base + count; ++id) {
+            if(MethodEntryListener.getMethod(id) == null) {
+                MethodEntryListener.registerMethod(new MethodMetrics("unknown", "unknown", new Timer()), id);
+            }
+        }
+        return base;
+    }
+
+    private static void startOffline(ClassLoader loader) {
+        try {
+            String configFile = System.getenv("METJO_CONFIG");
+            Map<Object, Object> config;
+            if(configFile != null) {
+                config = loadConfig(configFile);
+            } else {
+                try (InputStream in = loader.getResourceAsStream(OfflineInstrumenter.CONFIG_RESOURCE)) {
+                    config = (Map<Object, Object>) new Yaml().load(in);
+                }
+            }
+            offlineTransformer = startReporting(config);
+        } catch(Exception e) {
+            System.err.println("WARNING: Could not start Metjo: " + e);
+        }
+        if(offlineTransformer == null) {
+            System.err.println("WARNING: Profiling is disabled for classes instrumented offline.");
+        }
+    }
+
+    private static List<String[]> readOfflineMethods(Class<?> table) throws IOException {
+        List<String[]> methods = new ArrayList<>();
+        try (InputStream in = table.getResourceAsStream(table.getSimpleName() + OfflineInstrumenter.TABLE_SUFFIX)) {
+            if(in == null) {
+                throw new IOException("No table next to " + table.getName());
+            }
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while((line = r.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if(parts.length == 3) {
+                    methods.add(parts);
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Starts the reporter and everything that doesn't depend on instrumenting classes at load time.
+     *
+     * @return a transformer for setting up the metrics of instrumented methods, or null if the reporter is unknown.
+     */
+    private static MetjoTransformer startReporting(Map<Object, Object> config) throws MetjoException {
         String reporter = (String) config.get("reporter");
         ReporterFactory rf = factories.get(reporter);
         if(rf == null) {
             System.err.println("WARNING: Unknown reporter. Profiling is disabled.");
-            return;
+            return null;
         }
+        started = true;
         MetricRegistry registry = new MetricRegistry();
         rf.makeReporter(registry, (Map<Object, Object>) config.get("properties"));
 
-        List<String> inc = (List<String>) config.get("includes");
-        if(inc == null) {
-            inc = Collections.EMPTY_LIST;
+        if(config.containsKey("telemetry")) {
+            new AgentTelemetry(registry, (Map<Object, Object>) config.get("telemetry")).start();
+        }
+        if(config.containsKey("buffering")) {
+            try {
+                new MetricBufferDrainer(registry, (Map<Object, Object>) config.get("buffering")).start();
+            } catch(MetjoException e) {
+                System.err.println("WARNING: " + e.getMessage() + ". Buffering is disabled.");
+            }
         }
-        List<String> ex = (List<String>) config.get("excludes");
-        if(ex == null) {
-            ex = Collections.EMPTY_LIST;
+        if(config.containsKey("recorder")) {
+            try {
+                new EventRecorder((Map<Object, Object>) config.get("recorder")).start();
+            } catch(MetjoException e) {
+                System.err.println("WARNING: " + e.getMessage() + ". Recording is disabled.");
+            }
+        }
+        if(config.containsKey("callTree")) {
+            try {
+                new CallTreeProfiler(registry, (Map<Object, Object>) config.get("callTree")).start();
+            } catch(MetjoException e) {
+                System.err.println("WARNING: " + e.getMessage() + ". Call tree profiling is disabled.");
+            }
+        }
+        if(config.containsKey("outliers")) {
+            try {
+                new OutlierRecorder(registry, (Map<Object, Object>) config.get("outliers")).start();
+            } catch(MetjoException e) {
+                System.err.println("WARNING: " + e.getMessage() + ". Outlier recording is disabled.");
+            }
+        }
+        return new MetjoTransformer(registry, config);
+    }
+
+    static Map<Object, Object> loadConfig(String configFile) throws IOException {
+        try (FileInputStream in = new FileInputStream(configFile)) {
+            return (Map<Object, Object>) new Yaml().load(in);
         }
-        inst.addTransformer(new MetjoTransformer(registry, inc, ex, (List<Map<String, String>>) config.get("parameters")));
-        MethodEntryListener.setMetricRegistry(registry);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics about the probes themselves, so that what MetJo costs is reported next to what it measures.
+ * Each thread counts the calls it makes through the probes in a counter of its own, and the counters are
+ * summed once a second. The overhead is estimated from the call rate and the cost of a probe pair, as a
+ * fraction of a CPU.
+ *
+ * Only runs when the configuration has a telemetry section, which may be empty. Configuration (all optional):
+ * <pre>
+ * telemetry:
+ *   probeCost: 50    # Estimated cost of an entry/exit probe pair in nanoseconds
+ * </pre>
+ */
+public class AgentTelemetry implements Runnable {
+    private final double probeCost;
+
+    private final Meter probes;
+
+    private final Counter exitsWithoutEntry;
+
+    // Counters of live threads, along with the threads owning them.
+    //
+    private final List<AtomicLong> counters = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    // Calls made by threads that have died.
+    //
+    private long retired;
+
+    private long lastTotal;
+
+    private long lastRun = System.nanoTime();
+
+    // Calls per second during the last period.
+    //
+    private volatile double rate;
+
+    public AgentTelemetry(MetricRegistry registry, Map<Object, Object> config) {
+        this.probeCost = Config.getNumber(config, "probeCost", 50).doubleValue();
+        this.probes = registry.meter("metjo.probes");
+        this.exitsWithoutEntry = registry.counter("metjo.probes.exitWithoutEntry");
+        registry.register("metjo.probes.overhead", (Gauge<Double>) () -> rate * probeCost / 1e9);
+    }
+
+    public void start() {
+        MethodEntryListener.setTelemetry(this);
+        Housekeeper.schedule(this, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Called by a thread the first time it enters an instrumented method. Only the owner writes to the
+     * counter, so it can be incremented without an atomic read-modify-write.
+     */
+    synchronized AtomicLong newCounter(Thread owner) {
+        AtomicLong counter = new AtomicLong();
+        counters.add(counter);
+        threads.add(owner);
+        return counter;
+    }
+
+    void exitWithoutEntry() {
+        if(exitsWithoutEntry.getCount() == 0) {
+            System.err.println("WARNING: Method exit without entry. Further occurrences are only counted in metjo.probes.exitWithoutEntry");
+        }
+        exitsWithoutEntry.inc();
+    }
+
+    @Override
+    public synchronized void run() {
+        long now = System.nanoTime();
+        long total = retired;
+        for(int i = counters.size() - 1; i >= 0; --i) {
+            // Check before reading, so that no call a dead thread made can be left out.
+            //
+            boolean dead = !threads.get(i).isAlive();
+            long count = counters.get(i).get();
+            total += count;
+            if(dead) {
+                retired += count;
+                counters.remove(i);
+                threads.remove(i);
+            }
+        }
+        probes.mark(total - lastTotal);
+        rate = (total - lastTotal) * 1e9 / (now - lastRun);
+        lastTotal = total;
+        lastRun = now;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps transformed classes on disk, so that a restarted JVM doesn't have to parse them and compile probes
+ * into them again. Entries are keyed by a hash of the original class bytes and of the parts of the
+ * configuration that affect the transformation, and carry a checksum so that damaged entries are ignored.
+ *
+ * The probes refer to methods by id, so the ids have to be the same in every JVM using the cache. The ids
+ * are therefore kept in a table in the cache directory, and reserved when the cache is opened. Only one
+ * JVM at a time may add to the cache. Others sharing the directory only read from it.
+ *
+ * Configuration:
+ * <pre>
+ * cache:
+ *   directory: /var/cache/metjo   # Created if it doesn't exist. Can be deleted at any time.
+ * </pre>
+ */
+public class BytecodeCache {
+    private static final int MAGIC = 0x4d4a4331;
+
+    private static final String GENERATION = "generation ";
+
+    /**
+     * The outcome of transforming a class, along with what the transformer needs to know to reuse it.
+     */
+    public static final class Entry {
+        // Names of the methods of the class, or null if its methods couldn't match any pattern.
+        //
+        private final String[] methodNames;
+
+        // Methods with probes, by id.
+        //
+        private final int[] ids;
+
+        private final String[] names;
+
+        private final String[] fullMethodNames;
+
+        // The transformed class, or null if it was left alone.
+        //
+        private final byte[] bytes;
+
+        public Entry(String[] methodNames, int[] ids, String[] names, String[] fullMethodNames, byte[] bytes) {
+            this.methodNames = methodNames;
+            this.ids = ids;
+            this.names = names;
+            this.fullMethodNames = fullMethodNames;
+            this.bytes = bytes;
+        }
+
+        public String[] getMethodNames() {
+            return methodNames;
+        }
+
+        public int getMethodCount() {
+            return ids.length;
+        }
+
+        public int getId(int i) {
+            return ids[i];
+        }
+
+        public String getName(int i) {
+            return names[i];
+        }
+
+        public String getFullMethodName(int i) {
+            return fullMethodNames[i];
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private final File classes;
+
+    private final String generation;
+
+    private final Map<String, Integer> reservedIds = new HashMap<>();
+
+    private int reservedCount;
+
+    // Open for appending if we hold the lock, otherwise null.
+    //
+    private final Writer idWriter;
+
+    private final FileLock lock;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter corrupt;
+
+    public BytecodeCache(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        Object dir = config != null ? config.get("directory") : null;
+        if(dir == null) {
+            throw new MetjoException("Cache needs a directory");
+        }
+        File directory = new File(dir.toString());
+        this.classes = new File(directory, "classes");
+        if(!classes.isDirectory() && !classes.mkdirs()) {
+            throw new MetjoException("Could not create cache directory " + classes);
+        }
+        this.lock = tryLock(new File(directory, "lock"));
+        File idFile = new File(directory, "ids");
+        try {
+            String gen = readIds(idFile);
+            if(lock == null) {
+                if(gen == null) {
+                    throw new MetjoException("Cache is being created by another process");
+                }
+                this.idWriter = null;
+            } else {
+                // Start over with a new generation if the table is missing or damaged. Entries from the old
+                // generation won't match anymore, since the generation is part of their keys.
+                //
+                if(gen == null) {
+                    gen = UUID.randomUUID().toString();
+                    reservedIds.clear();
+                    reservedCount = 0;
+                    Files.write(idFile.toPath(), (GENERATION + gen + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                this.idWriter = Files.newBufferedWriter(idFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+                // Don't append to a line that was cut short.
+                //
+                byte[] table = Files.readAllBytes(idFile.toPath());
+                if(table[table.length - 1] != '\n') {
+                    idWriter.write('\n');
+                }
+            }
+            this.generation = gen;
+        } catch(IOException e) {
+            throw new MetjoException("Could not open cache: " + e);
+        }
+        this.hits = registry.counter("metjo.cache.hits");
+        this.misses = registry.counter("metjo.cache.misses");
+        this.corrupt = registry.counter("metjo.cache.corrupt");
+    }
+
+    /**
+     * Locks the cache for this JVM. The lock is held until the JVM exits.
+     */
+    private static FileLock tryLock(File file) {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE).tryLock();
+        } catch(IOException | OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the id table and returns its generation, or null if there is no usable table.
+     */
+    private String readIds(File idFile) throws IOException {
+        if(!idFile.exists()) {
+            return null;
+        }
+        try (BufferedReader in = Files.newBufferedReader(idFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if(line == null || !line.startsWith(GENERATION)) {
+                return null;
+            }
+            String gen = line.substring(GENERATION.length());
+            while((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                try {
+                    int id = Integer.parseInt(line.substring(0, tab));
+                    reservedIds.put(line.substring(tab + 1), id);
+                    reservedCount = Math.max(reservedCount, id + 1);
+                } catch(RuntimeException e) {
+                    // A line that was cut short when a JVM died is harmless, but anything else means the
+                    // table can't be trusted.
+                    //
+                    if(in.readLine() != null) {
+                        return null;
+                    }
+                }
+            }
+            return gen;
+        }
+    }
+
+    /**
+     * @return the number of ids in the table. Methods not in it must get ids from this number and up.
+     */
+    public int getReservedCount() {
+        return reservedCount;
+    }
+
+    /**
+     * @return the id of a method in the table, or null if it isn't in it.
+     */
+    public Integer getReservedId(String methodKey) {
+        return reservedIds.get(methodKey);
+    }
+
+    /**
+     * Adds a method to the table, unless another JVM is maintaining the cache.
+     */
+    public synchronized void addId(int id, String methodKey) {
+        if(idWriter == null) {
+            return;
+        }
+        try {
+            idWriter.write(id + "\t" + methodKey + "\n");
+            idWriter.flush();
+        } catch(IOException e) {
+            System.err.println("WARNING: Could not write cache id table: " + e);
+        }
+    }
+
+    /**
+     * @return the key of the cache entry for a class transformed with the given configuration.
+     */
+    public String key(String configKey, String className, byte[] classfile) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((generation + '\0' + configKey + '\0' + className + '\0').getBytes(StandardCharsets.UTF_8));
+            md.update(classfile);
+            StringBuilder sb = new StringBuilder();
+            for(byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the entry with the given key, or null if there is none or it is damaged.
+     */
+    public Entry get(String key) {
+        File file = file(key);
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if(data.length < 8) {
+                throw new IOException("Truncated entry");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipBytes(data.length - 8);
+            if(in.readLong() != crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+            String[] methodNames = null;
+            int n = in.readInt();
+            if(n >= 0) {
+                methodNames = new String[n];
+                for(int i = 0; i < n; ++i) {
+                    methodNames[i] = in.readUTF();
+                }
+            }
+            n = in.readInt();
+            int[] ids = new int[n];
+            String[] names = new String[n];
+            String[] fullMethodNames = new String[n];
+            for(int i = 0; i < n; ++i) {
+                ids[i] = in.readInt();
+                names[i] = in.readUTF();
+                fullMethodNames[i] = in.readUTF();
+            }
+            byte[] bytes = null;
+            n = in.readInt();
+            if(n >= 0) {
+                bytes = new byte[n];
+                in.readFully(bytes);
+            }
+            return new Entry(methodNames, ids, names, fullMethodNames, bytes);
+        } catch(IOException | RuntimeException e) {
+            corrupt.inc();
+            System.err.println("WARNING: Ignoring damaged cache entry " + file + ": " + e);
+            if(idWriter != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry, unless another JVM is maintaining the cache. Written to a temporary file that is then
+     * renamed, so that readers never see a half-written entry.
+     */
+    public void put(String key, Entry entry) {
+        if(idWriter == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            if(entry.methodNames != null) {
+                out.writeInt(entry.methodNames.length);
+                for(String name : entry.methodNames) {
+                    out.writeUTF(name);
+                }
+            } else {
+                out.writeInt(-1);
+            }
+            out.writeInt(entry.ids.length);
+            for(int i = 0; i < entry.ids.length; ++i) {
+                out.writeInt(entry.ids[i]);
+                out.writeUTF(entry.names[i]);
+                out.writeUTF(entry.fullMethodNames[i]);
+            }
+            if(entry.bytes != null) {
+                out.writeInt(entry.bytes.length);
+                out.write(entry.bytes);
+            } else {
+                out.writeInt(-1);
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bos.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            Path target = file(key).toPath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), key, ".tmp");
+            Files.write(tmp, bos.toByteArray());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            System.err.println("WARNING: Could not write cache entry: " + e);
+        }
+    }
+
+    public void hit() {
+        hits.inc();
+    }
+
+    public void miss() {
+        misses.inc();
+    }
+
+    private File file(String key) {
+        return new File(new File(classes, key.substring(0, 2)), key);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Call counts and times aggregated per call path. Nodes live in parallel primitive arrays and are only ever
+ * appended, so recording a call doesn't allocate once the tree has seen all the paths of its thread.
+ * Node 0 is the root and every node is created after its parent, which keeps merging a single forward pass.
+ *
+ * A tree is only written to by its own thread. Other threads may read it, and will then see a consistent
+ * set of nodes, although the counters may lag a little behind.
+ */
+public class CallTree {
+    private static final int ROOT = 0;
+
+    private final int maxNodes;
+
+    private int[] methodIds = new int[64];
+
+    private int[] parents = new int[64];
+
+    private int[] firstChildren = new int[64];
+
+    private int[] nextSiblings = new int[64];
+
+    private long[] counts = new long[64];
+
+    private long[] totalTimes = new long[64];
+
+    private long[] childTimes = new long[64];
+
+    // Published after the node arrays, so a reader that sees a size also sees the nodes below it.
+    //
+    private volatile int size = 1;
+
+    // Calls that weren't recorded because the tree was full.
+    //
+    private long truncated;
+
+    public CallTree(int maxNodes) {
+        this.maxNodes = maxNodes;
+        firstChildren[ROOT] = -1;
+        nextSiblings[ROOT] = -1;
+    }
+
+    public static int root() {
+        return ROOT;
+    }
+
+    /**
+     * Returns the node for a call to a method from the given parent node, creating it if needed. Returns -1
+     * if the tree is full or the parent wasn't recorded, in which case the call isn't recorded either.
+     */
+    public int child(int parent, int methodId) {
+        if(parent < 0) {
+            ++truncated;
+            return -1;
+        }
+        for(int n = firstChildren[parent]; n != -1; n = nextSiblings[n]) {
+            if(methodIds[n] == methodId) {
+                return n;
+            }
+        }
+        int n = size;
+        if(n == maxNodes) {
+            ++truncated;
+            return -1;
+        }
+        if(n == methodIds.length) {
+            int capacity = Math.min(n * 2, maxNodes);
+            methodIds = Arrays.copyOf(methodIds, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            totalTimes = Arrays.copyOf(totalTimes, capacity);
+            childTimes = Arrays.copyOf(childTimes, capacity);
+        }
+        methodIds[n] = methodId;
+        parents[n] = parent;
+        firstChildren[n] = -1;
+        nextSiblings[n] = firstChildren[parent];
+        firstChildren[parent] = n;
+        size = n + 1;
+        return n;
+    }
+
+    public void record(int node, long duration) {
+        ++counts[node];
+        totalTimes[node] += duration;
+        childTimes[parents[node]] += duration;
+    }
+
+    /**
+     * Adds the paths and counters of another tree to this one.
+     */
+    public void merge(CallTree other) {
+        int n = other.size;
+        int[] otherMethodIds = other.methodIds;
+        int[] otherParents = other.parents;
+        long[] otherCounts = other.counts;
+        long[] otherTotalTimes = other.totalTimes;
+        long[] otherChildTimes = other.childTimes;
+        int[] map = new int[n];
+        map[ROOT] = ROOT;
+        for(int i = 1; i < n; ++i) {
+            int parent = map[otherParents[i]];
+            int node = parent >= 0 ? child(parent, otherMethodIds[i]) : -1;
+            map[i] = node;
+            if(node < 0) {
+                continue;
+            }
+            counts[node] += otherCounts[i];
+            totalTimes[node] += otherTotalTimes[i];
+            childTimes[node] += otherChildTimes[i];
+        }
+        truncated += other.truncated;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Writes one line per path in the collapsed stack format used by flame graph tools, with the self time
+     * of the path in microseconds as its value.
+     */
+    public void writeCollapsed(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 1; i < size; ++i) {
+            long self = (totalTimes[i] - childTimes[i]) / 1000;
+            if(self <= 0) {
+                continue;
+            }
+            sb.setLength(0);
+            appendPath(sb, i, ';');
+            sb.append(' ').append(self).append('\n');
+            out.write(sb.toString());
+        }
+    }
+
+    /**
+     * Writes the call count, total time and self time in milliseconds of every path.
+     */
+    public void writeSummary(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        out.write("calls\ttotal_ms\tself_ms\tpath\n");
+        for(int i = 1; i < size; ++i) {
+            sb.setLength(0);
+            sb.append(counts[i]).append('\t')
+                    .append(String.format("%.3f", totalTimes[i] / 1e6)).append('\t')
+                    .append(String.format("%.3f", (totalTimes[i] - childTimes[i]) / 1e6)).append('\t');
+            appendPath(sb, i, ' ');
+            sb.append('\n');
+            out.write(sb.toString());
+        }
+    }
+
+    private void appendPath(StringBuilder sb, int node, char separator) {
+        int start = sb.length();
+        for(int n = node; n != ROOT; n = parents[n]) {
+            String name = MethodEntryListener.getMethod(methodIds[n]).getFullMethodName();
+            sb.insert(start, name);
+            if(parents[n] != ROOT) {
+                sb.insert(start, separator);
+            }
+        }
+    }
+}
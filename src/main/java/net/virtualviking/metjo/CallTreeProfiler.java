@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a call tree per thread and periodically merges them into files describing where the time goes.
+ * The collapsed stack output can be fed straight into flame graph tools. In call tree mode every call of an
+ * instrumented method is timed, also for methods whose timers are sampled.
+ *
+ * Configuration:
+ * <pre>
+ * callTree:
+ *   output: /tmp/metjo.collapsed   # Collapsed stacks with self time in microseconds
+ *   summary: /tmp/metjo-tree.txt   # Optional. Call count, total and self time per path
+ *   period: 10                     # Seconds between writing the files
+ *   maxNodes: 10000                # Max number of distinct paths per thread
+ * </pre>
+ */
+public class CallTreeProfiler implements Runnable {
+    private final File output;
+
+    private final File summary;
+
+    private final long period;
+
+    private final int maxNodes;
+
+    // Trees of live threads, along with the threads owning them.
+    //
+    private final List<CallTree> trees = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    // Everything recorded by threads that have died.
+    //
+    private final CallTree retired = new CallTree(Integer.MAX_VALUE);
+
+    private volatile int mergedSize;
+
+    private volatile long truncated;
+
+    public CallTreeProfiler(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        String o = (String) config.get("output");
+        if(o == null) {
+            throw new MetjoException("Call tree output file must be specified");
+        }
+        this.output = new File(o);
+        String s = (String) config.get("summary");
+        this.summary = s != null ? new File(s) : null;
+        this.period = Config.getNumber(config, "period", 10).longValue();
+        this.maxNodes = Config.getNumber(config, "maxNodes", 10000).intValue();
+        registry.register("metjo.calltree.paths", (Gauge<Integer>) () -> mergedSize);
+        registry.register("metjo.calltree.truncated", (Gauge<Long>) () -> truncated);
+    }
+
+    public void start() {
+        MethodEntryListener.setCallTreeProfiler(this);
+        Housekeeper.schedule(this, period, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this, "metjo-calltree-shutdown"));
+    }
+
+    /**
+     * Called by a thread the first time it enters an instrumented method.
+     */
+    synchronized CallTree newTree(Thread owner) {
+        CallTree tree = new CallTree(maxNodes);
+        trees.add(tree);
+        threads.add(owner);
+        return tree;
+    }
+
+    @Override
+    public synchronized void run() {
+        CallTree merged = new CallTree(Integer.MAX_VALUE);
+        merged.merge(retired);
+        for(int i = trees.size() - 1; i >= 0; --i) {
+            CallTree tree = trees.get(i);
+            if(threads.get(i).isAlive()) {
+                merged.merge(tree);
+            } else {
+                // The thread is gone, so its tree won't change anymore.
+                //
+                retired.merge(tree);
+                merged.merge(tree);
+                trees.remove(i);
+                threads.remove(i);
+            }
+        }
+        mergedSize = merged.size() - 1;
+        truncated = merged.getTruncated();
+        try {
+            write(output, merged, false);
+            if(summary != null) {
+                write(summary, merged, true);
+            }
+        } catch(IOException e) {
+            System.err.println("WARNING: Could not write call tree: " + e);
+        }
+    }
+
+    /**
+     * Writes to a temporary file that is then renamed, so that readers never see a half-written file.
+     */
+    private static void write(File file, CallTree tree, boolean summary) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            if(summary) {
+                tree.writeSummary(out);
+            } else {
+                tree.writeCollapsed(out);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
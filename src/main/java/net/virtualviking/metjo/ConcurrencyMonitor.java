@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how many calls of selected methods are in progress. The probes count calls in and out
+ * of a striped counter, and the counters are sampled in the background to find the peak and mean number
+ * of calls in progress during each interval. From the mean and the call rate, Little's law gives the
+ * mean time a call is in progress, which should be close to the mean of the timer unless calls are lost.
+ *
+ * Configuration (all optional except the patterns):
+ * <pre>
+ * concurrency:
+ *   patterns:              # Methods to keep track of, like the include patterns
+ *     - "com.foo.Bar.*"
+ *   samplePeriod: 10       # Milliseconds between samples
+ *   interval: 20           # Seconds covered by the peak and mean. Defaults to the reporting period.
+ * </pre>
+ */
+public class ConcurrencyMonitor implements Runnable {
+    /**
+     * The calls in progress of one method, along with what has been sampled during the current interval.
+     */
+    public static final class InFlight {
+        private final LongAdder count = new LongAdder();
+
+        private final Timer timer;
+
+        // Only touched by the sampler.
+        //
+        private long peak;
+
+        private long sum;
+
+        private long samples;
+
+        private long lastCalls;
+
+        private volatile long lastPeak;
+
+        private volatile double lastMean;
+
+        private volatile double lastRate;
+
+        private InFlight(Timer timer) {
+            this.timer = timer;
+            this.lastCalls = timer.getCount();
+        }
+
+        void enter() {
+            count.increment();
+        }
+
+        void exit() {
+            count.decrement();
+        }
+
+        private void sample() {
+            long n = count.sum();
+            peak = Math.max(peak, n);
+            sum += n;
+            ++samples;
+        }
+
+        private void rollOver(double seconds) {
+            long calls = timer.getCount();
+            lastPeak = peak;
+            lastMean = samples > 0 ? (double) sum / samples : 0;
+            lastRate = (calls - lastCalls) / seconds;
+            lastCalls = calls;
+            peak = 0;
+            sum = 0;
+            samples = 0;
+        }
+    }
+
+    private final MetricRegistry registry;
+
+    private final long samplePeriod;
+
+    private final long intervalNanos;
+
+    // Shared by methods sharing a timer.
+    //
+    private final Map<String, InFlight> byName = new HashMap<>();
+
+    private final List<InFlight> all = new ArrayList<>();
+
+    private long intervalStart = System.nanoTime();
+
+    public ConcurrencyMonitor(MetricRegistry registry, Map<Object, Object> config, long defaultInterval) {
+        this.registry = registry;
+        this.samplePeriod = Config.getNumber(config, "samplePeriod", 10).longValue();
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(Config.getNumber(config, "interval", defaultInterval).longValue());
+    }
+
+    public void start() {
+        Housekeeper.schedule(this, samplePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the in-flight counter of a method, creating it and its gauges on first use.
+     */
+    synchronized InFlight inFlight(MethodMetrics m) {
+        InFlight f = byName.get(m.getName());
+        if (f == null) {
+            InFlight nf = new InFlight(m.getTimer());
+            String name = m.getName() + ".inFlight";
+            registry.register(name, (Gauge<Long>) nf.count::sum);
+            registry.register(name + ".peak", (Gauge<Long>) () -> nf.lastPeak);
+            registry.register(name + ".mean", (Gauge<Double>) () -> nf.lastMean);
+            registry.register(name + ".wait", (Gauge<Double>) () -> nf.lastRate > 0 ? nf.lastMean / nf.lastRate * 1000 : 0);
+            byName.put(m.getName(), nf);
+            all.add(nf);
+            f = nf;
+        }
+        return f;
+    }
+
+    @Override
+    public synchronized void run() {
+        for (InFlight f : all) {
+            f.sample();
+        }
+        long now = System.nanoTime();
+        if (now - intervalStart >= intervalNanos) {
+            double seconds = (now - intervalStart) / 1e9;
+            intervalStart = now;
+            for (InFlight f : all) {
+                f.rollOver(seconds);
+            }
+        }
+    }
+}
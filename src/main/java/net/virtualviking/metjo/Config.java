@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.util.Map;
+
+/**
+ * Helpers for reading sections of the configuration file, including the properties of reporters.
+ */
+public final class Config {
+    private Config() {
+    }
+
+    /**
+     * @return the number under the key, or the default if it's missing or isn't a number. The section
+     * itself may be missing.
+     */
+    public static Number getNumber(Map<Object, Object> config, String key, Number defaultValue) {
+        Object value = config != null ? config.get(key) : null;
+        return value instanceof Number ? (Number) value : defaultValue;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the configuration file and hands the instrumentation part of it to the transformer whenever the
+ * file changes. Reporter, governor and watcher settings only take effect on restart.
+ */
+public class ConfigWatcher implements Runnable {
+    private final File file;
+
+    private final MetjoTransformer transformer;
+
+    private final Instrumentation instrumentation;
+
+    private long lastModified;
+
+    public ConfigWatcher(String configFile, MetjoTransformer transformer, Instrumentation instrumentation) {
+        this.file = new File(configFile);
+        this.transformer = transformer;
+        this.instrumentation = instrumentation;
+        this.lastModified = file.lastModified();
+    }
+
+    public void start(long period) {
+        Housekeeper.schedule(this, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        long modified = file.lastModified();
+        if(modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+        Map<Object, Object> config;
+        try {
+            config = Agent.loadConfig(file.getPath());
+        } catch(Exception e) {
+            System.err.println("WARNING: Could not read configuration " + file + ". Keeping the current one. Reason: " + e);
+            return;
+        }
+        if(config == null) {
+            System.err.println("WARNING: Configuration " + file + " is empty. Keeping the current one.");
+            return;
+        }
+        transformer.reconfigure(config, instrumentation);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every call of an instrumented method into a memory-mapped file, so that what happened during
+ * a latency spike can be reconstructed afterwards with {@link RecordingReader}. The file is split into a
+ * region per thread, each one a ring of fixed-size records. A region has a single writer, so recording a
+ * call neither locks nor allocates. When there are more threads than regions, regions of threads that
+ * have died are handed out again, and threads that can't get one aren't recorded.
+ *
+ * Layout, all numbers big-endian:
+ * <pre>
+ * File header (64 bytes):   magic, version, record size, parameter slots, region count, region size,
+ *                           System.nanoTime() and System.currentTimeMillis() when recording started
+ * Region header (64 bytes): id of the thread owning the region, number of records ever written to it
+ * Record:                   thread id, start (nanoTime), duration (ns), method id, parameter count in the
+ *                           low 16 bits and which parameters are doubles in the high 16, parameter values
+ * </pre>
+ * The names of the methods are written to a separate file with the extension ".methods", one line per
+ * method id along with the names of its captured parameters, in the order they're stored in the records.
+ * Float and double values are stored as the raw bits of the double. Whether a value is one is recorded
+ * with it, since a parameter declared as a Number can hold either.
+ *
+ * Configuration:
+ * <pre>
+ * recorder:
+ *   file: /tmp/metjo.rec     # The recording
+ *   regionSize: 1048576      # Bytes per thread
+ *   regions: 64              # Max number of threads recorded at the same time
+ *   parameters: 2            # Captured parameter values to keep per call, at most 16
+ * </pre>
+ */
+public class EventRecorder implements Runnable {
+    static final long MAGIC = 0x4d45544a4f524543L; // "METJOREC"
+
+    static final int VERSION = 2;
+
+    static final int MAX_PARAMETERS = 16;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int REGION_HEADER_SIZE = 64;
+
+    static final int RECORD_HEADER_SIZE = 32;
+
+    /**
+     * A thread's part of the recording. Only ever written to by that thread.
+     */
+    static final class Region {
+        private final ByteBuffer buffer;
+
+        private final long threadId;
+
+        private final int recordSize;
+
+        private final int parameterSlots;
+
+        private final long capacity;
+
+        private long count;
+
+        private Region(ByteBuffer buffer, long threadId, int recordSize, int parameterSlots) {
+            this.buffer = buffer;
+            this.threadId = threadId;
+            this.recordSize = recordSize;
+            this.parameterSlots = parameterSlots;
+            this.capacity = (buffer.capacity() - REGION_HEADER_SIZE) / recordSize;
+
+            // Keep counting where the previous owner left off, so that its records stay readable until
+            // they're overwritten.
+            //
+            this.count = buffer.getLong(8);
+            buffer.putLong(0, threadId);
+        }
+
+        int getParameterSlots() {
+            return parameterSlots;
+        }
+
+        /**
+         * Records a call. The caller may keep more parameters than a record holds, when the outlier recorder
+         * is set up with more, so only the first ones are kept.
+         */
+        void record(int methodId, long start, long duration, long[] parameters, int offset, int parameterCount,
+                    int kinds) {
+            int p = REGION_HEADER_SIZE + (int) (count % capacity) * recordSize;
+            int n = Math.min(parameterCount, parameterSlots);
+            buffer.putLong(p, threadId);
+            buffer.putLong(p + 8, start);
+            buffer.putLong(p + 16, duration);
+            buffer.putInt(p + 24, methodId);
+            buffer.putInt(p + 28, (kinds & ((1 << n) - 1)) << 16 | n);
+            for(int i = 0; i < n; ++i) {
+                buffer.putLong(p + RECORD_HEADER_SIZE + i * 8, parameters[offset + i]);
+            }
+            buffer.putLong(8, ++count);
+        }
+    }
+
+    private final File methodsFile;
+
+    private final MappedByteBuffer map;
+
+    private final int regionSize;
+
+    private final int recordSize;
+
+    private final int parameterSlots;
+
+    private final Thread[] owners;
+
+    private int writtenMethods = -1;
+
+    public EventRecorder(Map<Object, Object> config) throws MetjoException {
+        String f = (String) config.get("file");
+        if(f == null) {
+            throw new MetjoException("Recording file must be specified");
+        }
+        File file = new File(f);
+        this.methodsFile = new File(f + ".methods");
+        this.regionSize = Config.getNumber(config, "regionSize", 1 << 20).intValue();
+        int regions = Config.getNumber(config, "regions", 64).intValue();
+        this.parameterSlots = Config.getNumber(config, "parameters", 2).intValue();
+        this.recordSize = RECORD_HEADER_SIZE + 8 * parameterSlots;
+        long size = HEADER_SIZE + (long) regions * regionSize;
+        if(parameterSlots < 0 || parameterSlots > MAX_PARAMETERS) {
+            throw new MetjoException("Recorder parameters must be between 0 and " + MAX_PARAMETERS);
+        }
+        if(regions < 1 || regionSize < REGION_HEADER_SIZE + recordSize || size > Integer.MAX_VALUE) {
+            throw new MetjoException("Recorder regions must hold at least one record and the file can't exceed 2GB");
+        }
+        this.owners = new Thread[regions];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(size);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch(IOException e) {
+            throw new MetjoException("Could not create recording " + file, e);
+        }
+        map.putLong(0, MAGIC);
+        map.putInt(8, VERSION);
+        map.putInt(12, recordSize);
+        map.putInt(16, parameterSlots);
+        map.putInt(20, regions);
+        map.putLong(24, regionSize);
+        map.putLong(32, System.nanoTime());
+        map.putLong(40, System.currentTimeMillis());
+    }
+
+    public void start() {
+        MethodEntryListener.setEventRecorder(this);
+        Housekeeper.schedule(this, 10, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            run();
+            map.force();
+        }, "metjo-recorder-shutdown"));
+    }
+
+    /**
+     * Called by a thread the first time it enters an instrumented method. Returns null if all regions are
+     * taken by live threads.
+     */
+    synchronized Region newRegion(Thread owner) {
+        for(int i = 0; i < owners.length; ++i) {
+            if(owners[i] == null || !owners[i].isAlive()) {
+                owners[i] = owner;
+                ByteBuffer b = map.duplicate();
+                b.position(HEADER_SIZE + i * regionSize);
+                b.limit(HEADER_SIZE + (i + 1) * regionSize);
+                return new Region(b.slice(), owner.getId(), recordSize, parameterSlots);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the names of the methods when new ones have been instrumented.
+     */
+    @Override
+    public synchronized void run() {
+        int n = MethodEntryListener.getMethodCount();
+        if(n == writtenMethods) {
+            return;
+        }
+        Path target = methodsFile.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for(int i = 0; i < n; ++i) {
+                    MethodMetrics m = MethodEntryListener.getMethod(i);
+                    if(m == null) {
+                        continue;
+                    }
+                    StringBuilder sb = new StringBuilder().append(i).append('\t').append(m.getFullMethodName());
+                    for(MetjoTransformer.CapturedParameter cp : m.getParameters()) {
+                        sb.append('\t').append(cp.getName());
+                    }
+                    out.write(sb.append('\n').toString());
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writtenMethods = n;
+        } catch(IOException e) {
+            System.err.println("WARNING: Could not write method names of recording: " + e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongSupplier;
+
+/**
+ * A reservoir backed by an HdrHistogram recorder. Recording is wait-free and every value is kept at a fixed
+ * relative precision, so the tail percentiles are exact to within that precision instead of depending on
+ * which values happened to survive in a sample.
+ *
+ * Snapshots cover one interval. The reservoirs of an {@link Interval} roll over when their snapshot is
+ * first read after an interval has ended, so that everything reading them during an interval, such as the
+ * reporter, the overhead governor and the outlier recorder, sees the same values, and none of them takes
+ * values away from the others. Nothing keeps track of the reservoirs, so they go away with their metrics.
+ */
+public class HdrReservoir implements Reservoir {
+    /**
+     * Most values returned by {@link Snapshot#getValues()}. Larger snapshots are downsampled.
+     */
+    static final int MAX_VALUES = 1024;
+
+    /**
+     * Intervals of a fixed length, shared by the reservoirs made with it. With a length matching the
+     * reporting period, every report sees the values recorded during the previous period. A reservoir that
+     * isn't read for a whole interval covers the time since it was last read instead.
+     */
+    public static final class Interval {
+        private final long intervalNanos;
+
+        private final LongSupplier clock;
+
+        private final long start;
+
+        public Interval(long intervalNanos) {
+            this(intervalNanos, System::nanoTime);
+        }
+
+        Interval(long intervalNanos, LongSupplier clock) {
+            this.intervalNanos = intervalNanos;
+            this.clock = clock;
+            this.start = clock.getAsLong();
+        }
+
+        /**
+         * @return the number of intervals that have ended so far.
+         */
+        private long ended() {
+            return (clock.getAsLong() - start) / intervalNanos;
+        }
+    }
+
+    private final Recorder recorder;
+
+    private final Interval interval;
+
+    private Histogram intervalHistogram;
+
+    private volatile HdrSnapshot snapshot;
+
+    // The interval that had ended when the reservoir was last rolled over.
+    //
+    private volatile long rolled;
+
+    /**
+     * Makes a reservoir that is only rolled over by calling {@link #roll()}.
+     */
+    public HdrReservoir(int significantDigits) {
+        this(significantDigits, null);
+    }
+
+    public HdrReservoir(int significantDigits, Interval interval) {
+        this.recorder = new Recorder(significantDigits);
+        this.interval = interval;
+        this.intervalHistogram = recorder.getIntervalHistogram();
+        this.snapshot = new HdrSnapshot(intervalHistogram.copy());
+        this.rolled = interval != null ? interval.ended() : 0;
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        recorder.recordValue(Math.max(value, 0));
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        if(interval != null) {
+            long ended = interval.ended();
+            if(ended > rolled) {
+                synchronized (this) {
+                    if(ended > rolled) {
+                        roll();
+                        rolled = ended;
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Ends the current interval, making the values recorded during it the snapshot.
+     */
+    public synchronized void roll() {
+        intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+        snapshot = new HdrSnapshot(intervalHistogram.copy());
+    }
+
+    private static class HdrSnapshot extends Snapshot {
+        private final Histogram histogram;
+
+        private HdrSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            return histogram.getValueAtPercentile(quantile * 100.0);
+        }
+
+        /**
+         * Returns the recorded values in order, rounded to the precision of the histogram. Beyond
+         * MAX_VALUES, the values are evenly spaced by rank instead, so that a busy timer doesn't expand
+         * into millions of values.
+         */
+        @Override
+        public long[] getValues() {
+            long total = histogram.getTotalCount();
+            int n = (int) Math.min(total, MAX_VALUES);
+            long[] values = new long[n];
+            int i = 0;
+            long seen = 0;
+            for(HistogramIterationValue v : histogram.recordedValues()) {
+                seen += v.getCountAtValueIteratedTo();
+
+                // Value i stands for the middle of the i-th of n equally large groups of values.
+                //
+                while(i < n && (i + 0.5) * total / n < seen) {
+                    values[i++] = v.getValueIteratedTo();
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the number of values recorded, which may be more than getValues returns.
+         */
+        @Override
+        public int size() {
+            return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getTotalCount() > 0 ? histogram.getMaxValue() : 0;
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getTotalCount() > 0 ? histogram.getMean() : 0;
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getTotalCount() > 0 ? histogram.getMinValue() : 0;
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getTotalCount() > 0 ? histogram.getStdDeviation() : 0;
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for(HistogramIterationValue v : histogram.recordedValues()) {
+                    out.printf("%d\t%d%n", v.getValueIteratedTo(), v.getCountAtValueIteratedTo());
+                }
+            }
+        }
+    }
+}
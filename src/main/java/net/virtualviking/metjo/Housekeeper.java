@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the agent's periodic background work on a single daemon thread, so that none of it ever runs on an
+ * application thread.
+ */
+public class Housekeeper {
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metjo-housekeeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static ScheduledFuture<?> schedule(Runnable task, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(() -> {
+            // An exception would silently cancel all future runs, so just log it and carry on.
+            //
+            try {
+                task.run();
+            } catch (Throwable e) {
+                System.err.println("WARNING: Background task failed: " + e);
+            }
+        }, period, period, unit);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * Marks a meter with each captured value, so that its rates are of the sum of the values per second, such as
+ * the amount traded per second, rather than of calls.
+ */
+public class MeterWrapper implements Updateable {
+    private final Meter meter;
+
+    public MeterWrapper(Meter meter) {
+        this.meter = meter;
+    }
+
+    @Override
+    public void update(long value) {
+        meter.mark(value);
+    }
+}
@@ -16,40 +16,247 @@
 
 package net.virtualviking.metjo;
 
-import com.codahale.metrics.Meter;
-import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.codahale.metrics.annotation.Gauge;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 public class MethodEntryListener {
 
+    /**
+     * Per-thread stack of active timed methods. Kept as parallel primitive arrays so that entering and
+     * leaving a method neither allocates nor synchronizes once the arrays have grown to the maximum depth.
+     */
     private static class ThreadData {
-        private final Stack<Timer.Context> contextStack = new Stack<>();
+        private int[] methodIds = new int[32];
+        private long[] startTimes = new long[32];
+        // Number of calls each frame stands for, or 0 if it isn't being timed.
+        private int[] weights = new int[32];
+        // Call tree node of each frame, when building call trees.
+        private int[] nodes = new int[32];
+        // Tag bucket of each frame, or -1 if its timer isn't split by value.
+        private int[] tags = new int[32];
+        // In-flight counter each frame has entered, so that it's left even if the configuration changes.
+        private ConcurrencyMonitor.InFlight[] inFlight = new ConcurrencyMonitor.InFlight[32];
+        // Resource histograms of each frame whose CPU time and allocations are being measured, along with
+        // the counters at the start of the call.
+        private ResourceUsage[] resources = new ResourceUsage[32];
+        private long[] cpuTimes = new long[32];
+        private long[] allocations = new long[32];
+        // Captured parameter values of each frame, how many of them there are and which of them are the
+        // bits of a double, when recording or looking for outliers.
+        private long[] parameters;
+        private int[] parameterCounts;
+        private int[] parameterKinds;
+        private int depth;
         private boolean inProbe;
+        private int seed = System.identityHashCode(this) | 1;
+        private final CallTree tree;
+        private final MetricBuffer buffer;
+        private final EventRecorder.Region region;
+        private final OutlierRecorder outliers;
+        private final int parameterSlots;
+        // Calls made through the probes. Only written by the owning thread.
+        private final AtomicLong calls;
+        // Whether every call must be timed, sampled or not.
+        private final boolean timeAll;
+
+        private ThreadData(CallTree tree, MetricBuffer buffer, EventRecorder.Region region, OutlierRecorder outliers,
+                           AtomicLong calls) {
+            this.tree = tree;
+            this.buffer = buffer;
+            this.region = region;
+            this.outliers = outliers;
+            this.parameterSlots = Math.max(region != null ? region.getParameterSlots() : 0,
+                    outliers != null ? outliers.getParameterSlots() : 0);
+            this.parameters = new long[32 * parameterSlots];
+            this.parameterCounts = new int[32];
+            this.parameterKinds = new int[32];
+            this.timeAll = tree != null || region != null;
+            this.calls = calls;
+        }
+
+        private void push(int id, int weight, long startTime) {
+            if(depth == methodIds.length) {
+                methodIds = Arrays.copyOf(methodIds, depth * 2);
+                startTimes = Arrays.copyOf(startTimes, depth * 2);
+                weights = Arrays.copyOf(weights, depth * 2);
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                tags = Arrays.copyOf(tags, depth * 2);
+                inFlight = Arrays.copyOf(inFlight, depth * 2);
+                resources = Arrays.copyOf(resources, depth * 2);
+                cpuTimes = Arrays.copyOf(cpuTimes, depth * 2);
+                allocations = Arrays.copyOf(allocations, depth * 2);
+                parameters = Arrays.copyOf(parameters, depth * 2 * parameterSlots);
+                parameterCounts = Arrays.copyOf(parameterCounts, depth * 2);
+                parameterKinds = Arrays.copyOf(parameterKinds, depth * 2);
+            }
+            if(tree != null) {
+                nodes[depth] = tree.child(depth > 0 ? nodes[depth - 1] : CallTree.root(), id);
+            }
+            if(parameterSlots > 0) {
+                Arrays.fill(parameters, depth * parameterSlots, (depth + 1) * parameterSlots, 0);
+                parameterCounts[depth] = 0;
+                parameterKinds[depth] = 0;
+            }
+            methodIds[depth] = id;
+            weights[depth] = weight;
+            tags[depth] = -1;
+            startTimes[depth++] = startTime;
+        }
+
+        /**
+         * Xorshift generator. Sampling decisions only need to be cheap and unbiased, and keeping the state
+         * per thread means there's nothing shared to contend on.
+         */
+        private int nextRandom() {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return x & Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stops the timer of an asynchronous call when its future completes, on whatever thread completes it.
+     */
+    private static final class Completion implements BiConsumer<Object, Throwable> {
+        private final int id;
+        private final long startTime;
+        private final int weight;
+        private final int tag;
+
+        private Completion(int id, long startTime, int weight, int tag) {
+            this.id = id;
+            this.startTime = startTime;
+            this.weight = weight;
+            this.tag = tag;
+        }
+
+        @Override
+        public void accept(Object value, Throwable failure) {
+            long duration = System.nanoTime() - startTime;
+            if(failure == null) {
+                updateTimer(id, duration, weight, tag);
+                return;
+            }
+            // Stages that depend on a failed stage fail with a CompletionException wrapping the actual failure.
+            //
+            if(failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            methods[id].countException(failure);
+            updateTimer(id, duration, -weight, -1);
+        }
     }
 
     private static ThreadLocal<ThreadData> threadData = new ThreadLocal<>();
 
-    private static MetricRegistry registry;
+    // Dense table of instrumented methods, indexed by the id baked into the probes. The array is replaced
+    // when it grows, so readers only ever see a fully populated prefix.
+    //
+    private static volatile MethodMetrics[] methods = new MethodMetrics[1024];
+
+    private static int methodCount;
+
+    private static volatile CallTreeProfiler callTreeProfiler;
+
+    private static volatile MetricBufferDrainer metricBufferDrainer;
+
+    private static volatile EventRecorder eventRecorder;
+
+    private static volatile AgentTelemetry telemetry;
+
+    private static volatile OutlierRecorder outlierRecorder;
+
+    static void setCallTreeProfiler(CallTreeProfiler profiler) {
+        callTreeProfiler = profiler;
+    }
+
+    static void setMetricBufferDrainer(MetricBufferDrainer drainer) {
+        metricBufferDrainer = drainer;
+    }
+
+    static void setEventRecorder(EventRecorder recorder) {
+        eventRecorder = recorder;
+    }
+
+    static void setTelemetry(AgentTelemetry t) {
+        telemetry = t;
+    }
+
+    static void setOutlierRecorder(OutlierRecorder recorder) {
+        outlierRecorder = recorder;
+    }
+
+    public static synchronized int registerMethod(MethodMetrics m) {
+        MethodMetrics[] table = methods;
+        if(methodCount >= table.length) {
+            table = Arrays.copyOf(table, Integer.highestOneBit(methodCount) << 1);
+        }
+        int id = methodCount++;
+        table[id] = m;
+        methods = table;
+        return id;
+    }
+
+    /**
+     * Registers a method under an id that was set aside with reserveIds.
+     */
+    static synchronized void registerMethod(MethodMetrics m, int id) {
+        MethodMetrics[] table = methods;
+        if(id >= table.length) {
+            table = Arrays.copyOf(table, Integer.highestOneBit(id) << 1);
+        }
+        table[id] = m;
+        methods = table;
+    }
 
-    private static Map<String, List<MetjoTransformer.CapturedParameter>> capturedParameters;
+    /**
+     * Sets aside the ids below the given count, so that methods registered from now on get higher ids. The
+     * methods of reserved ids that haven't been registered yet are null.
+     */
+    static synchronized void reserveIds(int count) {
+        methodCount = Math.max(methodCount, count);
+    }
 
-    public static void setMetricRegistry(MetricRegistry r) {
-        registry = r;
+    /**
+     * Sets aside a block of ids above every id handed out so far.
+     *
+     * @return the first id of the block.
+     */
+    static synchronized int reserveBlock(int count) {
+        int first = methodCount;
+        methodCount += count;
+        return first;
     }
 
-    public static void setCapturedParameters(Map<String, List<MetjoTransformer.CapturedParameter>> p) {
-        capturedParameters = p;
+    public static MethodMetrics getMethod(int id) {
+        return methods[id];
     }
 
-    public static void onMethodEntryWithArgs(String method, String fullMethodName, Object[] parameters) {
+    public static synchronized int getMethodCount() {
+        return methodCount;
+    }
+
+    public static void onMethodEntry(int id) {
         ThreadData td = threadData.get();
         if(td == null) {
-            td = new ThreadData();
+            CallTreeProfiler profiler = callTreeProfiler;
+            MetricBufferDrainer drainer = metricBufferDrainer;
+            EventRecorder recorder = eventRecorder;
+            AgentTelemetry t = telemetry;
+            td = new ThreadData(profiler != null ? profiler.newTree(Thread.currentThread()) : null,
+                    drainer != null ? drainer.newBuffer(Thread.currentThread()) : null,
+                    recorder != null ? recorder.newRegion(Thread.currentThread()) : null,
+                    outlierRecorder,
+                    t != null ? t.newCounter(Thread.currentThread()) : new AtomicLong());
             threadData.set(td);
         }
 
@@ -58,60 +265,310 @@ public class MethodEntryListener {
         //
         if(td.inProbe)
             return;
+        td.calls.lazySet(td.calls.get() + 1);
         td.inProbe = true;
         try {
-            // Create timer context
+            // Call trees and recordings need the time of every call, sampled or not.
             //
-            Timer t = registry.timer(method);
-            td.contextStack.push(t.time());
+            MethodMetrics m = methods[id];
+            int interval = m.getSamplingInterval();
+            if(td.timeAll) {
+                td.push(id, interval == 1 || td.nextRandom() % interval == 0 ? interval : 0, System.nanoTime());
+            } else if(interval == 1) {
+                td.push(id, 1, System.nanoTime());
+            } else if(td.nextRandom() % interval == 0) {
+                td.push(id, interval, System.nanoTime());
+            } else {
+                td.push(id, 0, 0);
+            }
+            ConcurrencyMonitor.InFlight f = m.getInFlight();
+            if(f != null) {
+                f.enter();
+                td.inFlight[td.depth - 1] = f;
+            }
+            ResourceUsage u = m.getResources();
+            int top = td.depth - 1;
+            if(u != null && (u.getInterval() == 1 || td.nextRandom() % u.getInterval() == 0)) {
+                td.resources[top] = u;
+                td.allocations[top] = u.allocatedBytes();
+                td.cpuTimes[top] = u.cpuTime();
 
-            // Capture parameters
-            //
-            List<MetjoTransformer.CapturedParameter> cps = capturedParameters.get(fullMethodName);
-            if(cps != null) {
-                for (MetjoTransformer.CapturedParameter cp : cps) {
-                    Object o = parameters[cp.getIndex()];
-                    if (!(o instanceof Number)) {
-                        continue; // Just silently skip anything that's not a number.
-                    }
-                    cp.getReceiver().update(((Number) o).longValue());
+                // Leave the time it took to read the counters out of the timer.
+                //
+                if(td.startTimes[top] != 0) {
+                    td.startTimes[top] = System.nanoTime();
                 }
+            } else {
+                td.resources[top] = null;
             }
         } finally {
             td.inProbe = false;
         }
     }
 
-    public static void onMethodEntry(String method, String fullMethodName) {
+    public static void captureLong(int id, int slot, long value) {
         ThreadData td = threadData.get();
-        if(td == null) {
-            td = new ThreadData();
-            threadData.set(td);
+        if(td == null || td.inProbe)
+            return;
+        td.inProbe = true;
+        try {
+            // The configuration may have changed since the probe was generated
+            //
+            MetjoTransformer.CapturedParameter[] cps = methods[id].getParameters();
+            if(slot < cps.length) {
+                cps[slot].getReceiver().update(value);
+            }
+            keepParameter(td, slot, value, false);
+        } finally {
+            td.inProbe = false;
         }
+    }
 
-        // Are we reentering the probe because we called a probed method from within the probe?
-        // Get us out of here to prevent infinite recursion!
-        //
-        if(td.inProbe)
+    public static void captureDouble(int id, int slot, double value) {
+        ThreadData td = threadData.get();
+        if(td == null || td.inProbe)
             return;
         td.inProbe = true;
         try {
-            // Create timer context
-            //
-            Timer t = registry.timer(method);
-            td.contextStack.push(t.time());
+            MetjoTransformer.CapturedParameter[] cps = methods[id].getParameters();
+            if(slot < cps.length) {
+                cps[slot].getReceiver().update(value);
+            }
+            keepParameter(td, slot, Double.doubleToRawLongBits(value), true);
         } finally {
             td.inProbe = false;
         }
     }
 
+    /**
+     * Keeps a captured value with the current frame, for the recorder and outliers. Whether it's a double
+     * goes with the value, since an argument declared as a Number can be either.
+     */
+    private static void keepParameter(ThreadData td, int slot, long value, boolean floatingPoint) {
+        if(slot < td.parameterSlots && td.depth > 0) {
+            int top = td.depth - 1;
+            td.parameters[top * td.parameterSlots + slot] = value;
+            td.parameterCounts[top] = Math.max(td.parameterCounts[top], slot + 1);
+            if(floatingPoint) {
+                td.parameterKinds[top] |= 1 << slot;
+            } else {
+                td.parameterKinds[top] &= ~(1 << slot);
+            }
+        }
+    }
+
+    /**
+     * Puts the current call of a method in the bucket of the given argument value, when its timer is split
+     * by value. Calls that aren't timed aren't looked up.
+     */
+    public static void tagBy(int id, Object value) {
+        ThreadData td = threadData.get();
+        if(!isTagged(td, id))
+            return;
+        td.inProbe = true;
+        try {
+            TagSketch tags = methods[id].getTags();
+            if(tags != null) {
+                td.tags[td.depth - 1] = tags.bucket(value);
+            }
+        } finally {
+            td.inProbe = false;
+        }
+    }
+
+    /**
+     * Like tagBy(int, Object), for integral arguments, so that they aren't boxed on every call.
+     */
+    public static void tagBy(int id, long value) {
+        ThreadData td = threadData.get();
+        if(!isTagged(td, id))
+            return;
+        td.inProbe = true;
+        try {
+            TagSketch tags = methods[id].getTags();
+            if(tags != null) {
+                td.tags[td.depth - 1] = tags.bucket(value);
+            }
+        } finally {
+            td.inProbe = false;
+        }
+    }
+
+    /**
+     * Like tagBy(int, Object), for floating point arguments.
+     */
+    public static void tagBy(int id, double value) {
+        ThreadData td = threadData.get();
+        if(!isTagged(td, id))
+            return;
+        td.inProbe = true;
+        try {
+            TagSketch tags = methods[id].getTags();
+            if(tags != null) {
+                td.tags[td.depth - 1] = tags.bucket(value);
+            }
+        } finally {
+            td.inProbe = false;
+        }
+    }
+
+    private static boolean isTagged(ThreadData td, int id) {
+        if(td == null || td.inProbe || td.depth == 0)
+            return false;
+        int top = td.depth - 1;
+        return td.methodIds[top] == id && td.weights[top] != 0;
+    }
+
+    public static void captureObject(int id, int slot, Object value) {
+        if (!(value instanceof Number)) {
+            return; // Just silently skip anything that's not a number.
+        }
+        if (value instanceof Double || value instanceof Float) {
+            captureDouble(id, slot, ((Number) value).doubleValue());
+        } else {
+            captureLong(id, slot, ((Number) value).longValue());
+        }
+    }
+
     public static void onMethodExit() {
+        exit(null, null);
+    }
+
+    /**
+     * Called instead of onMethodExit when a method throws, if failures are tracked or the method is timed
+     * asynchronously.
+     */
+    public static void onMethodFailure(Throwable failure) {
+        exit(failure, null);
+    }
+
+    /**
+     * Called instead of onMethodExit when a method timed asynchronously returns. The frame is popped right
+     * away, but the timer is only updated once the returned future completes. Call trees and recordings get
+     * the time spent in the method itself.
+     */
+    public static void onAsyncMethodExit(Object result) {
+        exit(null, result instanceof CompletionStage ? (CompletionStage<?>) result : null);
+    }
+
+    private static void exit(Throwable failure, CompletionStage<?> future) {
         ThreadData td = threadData.get();
-        if(td == null || td.contextStack.size() == 0) {
-            System.err.println("WARNING: Method exit without entry");
+        if(td == null || td.depth == 0) {
+            AgentTelemetry t = telemetry;
+            if(t != null) {
+                t.exitWithoutEntry();
+            }
+            return;
+        }
+        if(td.inProbe)
+            return;
+        int top = --td.depth;
+        ResourceUsage u = td.resources[top];
+        if(u != null) {
+            long start = System.nanoTime();
+            long cpuTime = u.cpuTime() - td.cpuTimes[top];
+            long allocated = u.allocatedBytes() - td.allocations[top];
+            td.resources[top] = null;
+            td.inProbe = true;
+            try {
+                u.update(cpuTime, allocated);
+            } finally {
+                td.inProbe = false;
+            }
+            td.startTimes[top] += System.nanoTime() - start;
+        }
+        int weight = td.weights[top];
+        ConcurrencyMonitor.InFlight f = td.inFlight[top];
+        if(f != null) {
+            f.exit();
+            td.inFlight[top] = null;
+        }
+        if(failure != null) {
+            td.inProbe = true;
+            try {
+                methods[td.methodIds[top]].countException(failure);
+            } finally {
+                td.inProbe = false;
+            }
+        }
+        if(weight == 0 && !td.timeAll)
+            return;
+        long duration = System.nanoTime() - td.startTimes[top];
+        if(td.tree != null && td.nodes[top] >= 0) {
+            td.tree.record(td.nodes[top], duration);
+        }
+        if(td.region != null) {
+            td.region.record(td.methodIds[top], td.startTimes[top], duration, td.parameters,
+                    top * td.parameterSlots, td.parameterCounts[top], td.parameterKinds[top]);
+        }
+
+        // Thresholds stay at Long.MAX_VALUE until the outlier recorder has seen enough calls of a method.
+        //
+        int id = td.methodIds[top];
+        long threshold = methods[id].getOutlierThreshold();
+        if(duration > threshold && td.outliers != null) {
+            Thread thread = Thread.currentThread();
+            td.inProbe = true;
+            try {
+                td.outliers.record(id, thread.getId(), thread.getName(), td.startTimes[top], duration, threshold,
+                        failure != null, td.methodIds, top, td.parameters, top * td.parameterSlots, td.parameterCounts[top],
+                        td.parameterKinds[top]);
+            } finally {
+                td.inProbe = false;
+            }
+        }
+        if(weight == 0)
+            return;
+
+        // Failed calls are passed on with a negative weight, so that they can be told apart in the buffer.
+        //
+        int tag = td.tags[top];
+        if(failure != null) {
+            weight = -weight;
+            tag = -1;
+        }
+        td.inProbe = true;
+        try {
+            if(future != null) {
+                future.whenComplete(new Completion(td.methodIds[top], td.startTimes[top], weight, tag));
+            } else if(td.buffer != null) {
+                td.buffer.record(td.methodIds[top], duration, weight, tag);
+            } else {
+                updateTimer(td.methodIds[top], duration, weight, tag);
+            }
+        } finally {
+            td.inProbe = false;
         }
-        Timer.Context t = td.contextStack.pop();
-        t.stop();
     }
 
+    static void updateTimer(int id, long duration, int weight, int tag) {
+        MethodMetrics m = methods[id];
+        if(weight == 1) {
+            m.getTimer().update(duration, TimeUnit.NANOSECONDS);
+        } else if(weight > 1) {
+            ((SampledTimer) m.getTimer()).update(duration, TimeUnit.NANOSECONDS, weight);
+        } else {
+            Timer timer = m.getFailureTimer() != null ? m.getFailureTimer() : m.getTimer();
+            if(weight == -1 || !(timer instanceof SampledTimer)) {
+                timer.update(duration, TimeUnit.NANOSECONDS);
+            } else {
+                ((SampledTimer) timer).update(duration, TimeUnit.NANOSECONDS, -weight);
+            }
+        }
+        if(tag >= 0) {
+            updateTagged(m, duration, weight, tag);
+        }
+    }
+
+    private static void updateTagged(MethodMetrics m, long duration, int weight, int tag) {
+        TagSketch tags = m.getTags();
+        Timer timer = tags != null ? tags.getTimer(tag) : null;
+        if(timer == null)
+            return;
+        if(weight == 1 || !(timer instanceof SampledTimer)) {
+            timer.update(duration, TimeUnit.NANOSECONDS);
+        } else {
+            ((SampledTimer) timer).update(duration, TimeUnit.NANOSECONDS, weight);
+        }
+    }
 }
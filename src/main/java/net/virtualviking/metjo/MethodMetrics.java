@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics bound to a single instrumented method. Instances are resolved once at instrumentation time and
+ * looked up by a dense integer id from the probes, so the hot path never touches the MetricRegistry.
+ */
+public class MethodMetrics {
+    private static final MetjoTransformer.CapturedParameter[] NO_PARAMETERS = new MetjoTransformer.CapturedParameter[0];
+
+    private final String name;
+
+    private final String fullMethodName;
+
+    private final Timer timer;
+
+    // Timer of the calls that threw, and where to register the exception counters, when failures are tracked.
+    //
+    private final Timer failureTimer;
+
+    private final MetricRegistry registry;
+
+    // Keyed by class name rather than class, so that the classes of exceptions don't keep their loaders alive.
+    //
+    private final ConcurrentMap<String, Counter> exceptions = new ConcurrentHashMap<>();
+
+    private volatile MetjoTransformer.CapturedParameter[] parameters = NO_PARAMETERS;
+
+    // Splits the timer by the value of an argument, or null.
+    //
+    private volatile TagSketch tags;
+
+    // Counts the calls in progress, or null.
+    //
+    private volatile ConcurrencyMonitor.InFlight inFlight;
+
+    // Measures the CPU time and allocations of calls, or null.
+    //
+    private volatile ResourceUsage resources;
+
+    // Calls taking longer than this many nanoseconds are kept by the OutlierRecorder.
+    //
+    private volatile long outlierThreshold = Long.MAX_VALUE;
+
+    // Time one in this many calls. Only ever different from 1 when the timer is a SampledTimer.
+    //
+    private volatile int samplingInterval = 1;
+
+    // Samples per second to aim for by adjusting the sampling interval, or 0 for a fixed interval.
+    //
+    private volatile double targetSampleRate;
+
+    private long lastSampleCount;
+
+    private long lastAdjustment = System.nanoTime();
+
+    // Set by the OverheadGovernor while the method is left uninstrumented.
+    //
+    private volatile boolean disabled;
+
+    public MethodMetrics(String name, String fullMethodName, Timer timer) {
+        this(name, fullMethodName, timer, null, null);
+    }
+
+    public MethodMetrics(String name, String fullMethodName, Timer timer, Timer failureTimer, MetricRegistry registry) {
+        this.name = name;
+        this.fullMethodName = fullMethodName;
+        this.timer = timer;
+        this.failureTimer = failureTimer;
+        this.registry = registry;
+    }
+
+    /**
+     * Applies the parts of the configuration that can change while the method is instrumented.
+     */
+    synchronized void configure(List<MetjoTransformer.CapturedParameter> parameters, int samplingInterval,
+                                double targetSampleRate) {
+        this.parameters = parameters != null
+                ? parameters.toArray(new MetjoTransformer.CapturedParameter[parameters.size()])
+                : NO_PARAMETERS;
+        if (timer instanceof SampledTimer) {
+            this.samplingInterval = Math.max(samplingInterval, 1);
+            this.targetSampleRate = targetSampleRate;
+        } else {
+            this.samplingInterval = 1;
+            this.targetSampleRate = 0;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFullMethodName() {
+        return fullMethodName;
+    }
+
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return the timer of calls that threw, or null if they are timed along with the other calls.
+     */
+    public Timer getFailureTimer() {
+        return failureTimer;
+    }
+
+    /**
+     * Counts an exception thrown by the method in a counter named after the exception class.
+     */
+    void countException(Throwable failure) {
+        if (registry == null) {
+            return;
+        }
+        String type = failure.getClass().getName();
+        Counter c = exceptions.get(type);
+        if (c == null) {
+            c = registry.counter(name + ".exceptions." + type);
+            exceptions.putIfAbsent(type, c);
+        }
+        c.inc();
+    }
+
+    public ConcurrencyMonitor.InFlight getInFlight() {
+        return inFlight;
+    }
+
+    void setInFlight(ConcurrencyMonitor.InFlight inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    public ResourceUsage getResources() {
+        return resources;
+    }
+
+    void setResources(ResourceUsage resources) {
+        this.resources = resources;
+    }
+
+    public long getOutlierThreshold() {
+        return outlierThreshold;
+    }
+
+    void setOutlierThreshold(long outlierThreshold) {
+        this.outlierThreshold = outlierThreshold;
+    }
+
+    public TagSketch getTags() {
+        return tags;
+    }
+
+    void setTags(TagSketch tags) {
+        this.tags = tags;
+    }
+
+    public MetjoTransformer.CapturedParameter[] getParameters() {
+        return parameters;
+    }
+
+    public int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+    }
+
+    /**
+     * @return the name of the class declaring the method.
+     */
+    public String getClassName() {
+        return fullMethodName.substring(0, fullMethodName.lastIndexOf('.'));
+    }
+
+    public boolean isAdaptivelySampled() {
+        return targetSampleRate > 0;
+    }
+
+    /**
+     * Recomputes the sampling interval from the call rate observed since the last adjustment, so that the
+     * number of samples taken approaches the target rate.
+     */
+    synchronized void adjustSampling() {
+        long now = System.nanoTime();
+        long samples = ((SampledTimer) timer).getSampleCount();
+        double seconds = (now - lastAdjustment) / 1e9;
+        double callRate = (samples - lastSampleCount) * (double) samplingInterval / seconds;
+        lastSampleCount = samples;
+        lastAdjustment = now;
+        long interval = Math.round(callRate / targetSampleRate);
+        samplingInterval = (int) Math.max(1, Math.min(interval, Integer.MAX_VALUE));
+    }
+}
@@ -16,22 +16,37 @@
 
 package net.virtualviking.metjo;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.annotation.Timed;
 import javassist.*;
-import org.apache.commons.io.filefilter.WildcardFileFilter;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
 import java.security.ProtectionDomain;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 /**
  * Created by prydin on 10/4/17.
@@ -62,27 +77,282 @@ public class MetjoTransformer implements ClassFileTransformer {
             return receiver;
         }
 
+        /**
+         * Formats a recorded value of a parameter. Float and double values are recorded as the raw bits of
+         * the double.
+         */
+        public static String format(long value, boolean floatingPoint) {
+            return floatingPoint ? Double.toString(Double.longBitsToDouble(value)) : Long.toString(value);
+        }
+    }
+
+    private static final class SamplingRule {
+        private final PatternMatcher pattern;
+
+        private final int interval;
+
+        private final double perSecond;
+
+        private SamplingRule(String pattern, int interval, double perSecond) {
+            this.pattern = new PatternMatcher(Collections.singletonList(pattern));
+            this.interval = interval;
+            this.perSecond = perSecond;
+        }
+    }
+
+    private static final class ResourceRule {
+        private final PatternMatcher pattern;
+
+        private final int interval;
+
+        private final boolean cpu;
+
+        private final boolean allocation;
+
+        private ResourceRule(String pattern, int interval, boolean cpu, boolean allocation) {
+            this.pattern = new PatternMatcher(Collections.singletonList(pattern));
+            this.interval = interval;
+            this.cpu = cpu;
+            this.allocation = allocation;
+        }
+    }
+
+    private static final class TagRule {
+        private final int index;
+
+        private final String name;
+
+        private final int maxValues;
+
+        private final int minCount;
+
+        private TagRule(int index, String name, int maxValues, int minCount) {
+            this.index = index;
+            this.name = name;
+            this.maxValues = maxValues;
+            this.minCount = minCount;
+        }
+    }
+
+    /**
+     * Everything derived from the instrumentation part of the configuration. Replaced as a whole when the
+     * configuration is reloaded.
+     */
+    private static final class Rules {
+        private final PatternMatcher includes;
+
+        private final PatternMatcher excludes;
+
+        private final Map<String, List<CapturedParameter>> capturedParameters = new HashMap<>();
+
+        private final List<SamplingRule> samplingRules = new ArrayList<>();
+
+        private final Map<String, TagRule> tagRules = new HashMap<>();
+
+        private final List<ResourceRule> resourceRules = new ArrayList<>();
+
+        // Methods to count the calls in progress of, or null.
+        //
+        private PatternMatcher concurrency;
+
+        private Map<Object, Object> concurrencyConfig;
+
+        // Everything in the configuration that affects how classes are transformed, for keying cached classes.
+        //
+        private String cacheKey;
+
+        private Rules(List<String> includes, List<String> excludes) {
+            this.includes = new PatternMatcher(includes);
+            this.excludes = new PatternMatcher(excludes);
+        }
+
+        private boolean isIncluded(PatternMatcher.State included, PatternMatcher.State excluded, String name) {
+            return included.advance(name).isAccepting() && !excluded.advance(name).isAccepting();
+        }
+
+        private SamplingRule findSamplingRule(String fullMethodName) {
+            for (SamplingRule rule : samplingRules) {
+                if (rule.pattern.matches(fullMethodName)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        private ResourceRule findResourceRule(String fullMethodName) {
+            for (ResourceRule rule : resourceRules) {
+                if (rule.pattern.matches(fullMethodName)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
     }
 
     private final MetricRegistry registry;
-    private final WildcardFileFilter[] includes;
-    private final WildcardFileFilter[] excludes;
-    private final Map<String, List<CapturedParameter>> capturedParameters = new HashMap<>();
+    // Makes the reservoirs of new timers and histograms, or null for the Dropwizard default.
+    private final Supplier<Reservoir> reservoirs;
+    // Whether calls that throw are timed separately. Changing it requires a restart, like the reservoir.
+    private final boolean trackFailures;
+    // Whether methods returning a CompletionStage are timed until it completes. Also requires a restart.
+    private final boolean timeAsync;
+    private final long reportingPeriod;
+    // Created when the first method to count calls in progress of is found.
+    private ConcurrencyMonitor concurrencyMonitor;
+    // Set before the transformer is installed, if at all.
+    private BytecodeCache cache;
+    private volatile Rules rules;
+    // Whether to log every method we instrument.
+    private volatile boolean verbose;
+    private final Counter classesScanned;
+    private final Counter classesInstrumented;
+    private final Counter methodsInstrumented;
+    private final Counter transformFailures;
+    private final Timer transformTime;
+    private final Map<String, Integer> methodIds = new HashMap<>();
+    private final List<MethodMetrics> adaptivelySampled = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean samplingAdjusterStarted = new AtomicBoolean();
+    // Names of the methods of every class that could be affected by the patterns, so that we can tell
+    // which classes a configuration change affects.
+    //
+    private final Map<String, String[]> scannedClasses = new ConcurrentHashMap<>();
+    // Everything that depends on javassist, so that the transformer can be used to set up metrics for
+    // classes instrumented offline without javassist being around.
+    //
+    private volatile Compiler compiler;
+    // How probes refer to the id of a method. Classes instrumented offline add the position of the method in
+    // their table to where the table ends up at runtime, see useIdTable().
+    //
+    private volatile IntFunction<String> idExpression = String::valueOf;
+
+    // Classes that must never be instrumented, since the probes themselves depend on them.
+    //
+    private static final String[] agentPackages = {
+            "net/virtualviking/metjo/", "javassist/", "com/codahale/metrics/", "org/HdrHistogram/" };
+
+    // Classes instrumented offline refer to the listener in their constant pool, and must not get a second set of probes.
+    //
+    private static final byte[] listenerName =
+            MethodEntryListener.class.getName().replace('.', '/').getBytes(StandardCharsets.UTF_8);
+
+    // The @Timed annotation shows up as this string in the constant pool of any class using it.
+    //
+    private static final byte[] timedDescriptor =
+            ("L" + Timed.class.getName().replace('.', '/') + ";").getBytes(StandardCharsets.UTF_8);
+
+    private static final String methodEntryProbe =
+            "net.virtualviking.metjo.MethodEntryListener.onMethodEntry({0});";
+
+    private static final String longCaptureProbe =
+            "net.virtualviking.metjo.MethodEntryListener.captureLong({0}, {1,number,#}, (long) ${2,number,#});";
 
-    private static final MessageFormat methodEntryProbe = new MessageFormat(
-            "net.virtualviking.metjo.MethodEntryListener.onMethodEntry(\"{0}\", \"{1}\");");
+    private static final String doubleCaptureProbe =
+            "net.virtualviking.metjo.MethodEntryListener.captureDouble({0}, {1,number,#}, (double) ${2,number,#});";
 
-    private static final MessageFormat methodEntryProbeWithArgs = new MessageFormat(
-            "net.virtualviking.metjo.MethodEntryListener.onMethodEntryWithArgs(\"{0}\", \"{1}\", $args);");
+    private static final String objectCaptureProbe =
+            "net.virtualviking.metjo.MethodEntryListener.captureObject({0}, {1,number,#}, ${2,number,#});";
 
-    private static final MessageFormat methodExitProbe = new MessageFormat(
-            "net.virtualviking.metjo.MethodEntryListener.onMethodExit();");
+    private static final String longTagProbe =
+            "net.virtualviking.metjo.MethodEntryListener.tagBy({0}, (long) ${1,number,#});";
 
+    private static final String doubleTagProbe =
+            "net.virtualviking.metjo.MethodEntryListener.tagBy({0}, (double) ${1,number,#});";
 
-    public MetjoTransformer(MetricRegistry registry, List<String> includes, List<String> excludes, List<Map<String, String>> parameters) {
+    private static final String objectTagProbe =
+            "net.virtualviking.metjo.MethodEntryListener.tagBy({0}, (Object) ${1,number,#});";
+
+    // Booleans and characters keep their names, using the cached instances of their wrappers.
+    //
+    private static final String wrappedTagProbe =
+            "net.virtualviking.metjo.MethodEntryListener.tagBy({0}, (Object) java.lang.{2}.valueOf(${1,number,#}));";
+
+    private static final String methodExitProbe =
+            "net.virtualviking.metjo.MethodEntryListener.onMethodExit();";
+
+    private static final String asyncMethodExitProbe =
+            "net.virtualviking.metjo.MethodEntryListener.onAsyncMethodExit($_);";
+
+    private static final String methodFailureProbe =
+            "{ net.virtualviking.metjo.MethodEntryListener.onMethodFailure($e); throw $e; }";
+
+
+    public MetjoTransformer(MetricRegistry registry, Map<Object, Object> config) {
         this.registry = registry;
-        this.includes = createFilters(includes);
-        this.excludes = createFilters(excludes);
+        this.reservoirs = parseReservoir(config);
+        this.trackFailures = Boolean.TRUE.equals(config.get("failures"));
+        this.timeAsync = Boolean.TRUE.equals(config.get("async"));
+        this.reportingPeriod = reportingPeriod(config);
+        this.rules = parseRules(config);
+        this.verbose = Boolean.TRUE.equals(config.get("verbose"));
+        this.classesScanned = registry.counter("metjo.classes.scanned");
+        this.classesInstrumented = registry.counter("metjo.classes.instrumented");
+        this.methodsInstrumented = registry.counter("metjo.methods.instrumented");
+        this.transformFailures = registry.counter("metjo.transform.failures");
+        this.transformTime = registry.timer("metjo.transform.time");
+    }
+
+    MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Makes classes transformed before, possibly by another JVM, load without being transformed again. Must
+     * be called before the transformer is installed.
+     */
+    public void setCache(BytecodeCache cache) {
+        this.cache = cache;
+        MethodEntryListener.reserveIds(cache.getReservedCount());
+    }
+
+    /**
+     * The reservoir applies to metrics as they are created, so changing it requires a restart.
+     */
+    private static Supplier<Reservoir> parseReservoir(Map<Object, Object> config) {
+        Object r = config.get("reservoir");
+        if(r == null) {
+            return null;
+        }
+        Map<Object, Object> rc = r instanceof Map ? (Map<Object, Object>) r : Collections.singletonMap("type", r);
+        String type = String.valueOf(rc.get("type"));
+        switch (type) {
+            case "exponential":
+                return null;
+            case "hdr":
+                Number digits = (Number) rc.get("significantDigits");
+                int significantDigits = digits != null ? digits.intValue() : 2;
+                Number interval = (Number) rc.get("interval");
+                HdrReservoir.Interval intervals = new HdrReservoir.Interval(
+                        TimeUnit.SECONDS.toNanos(interval != null ? interval.longValue() : reportingPeriod(config)));
+                return () -> new HdrReservoir(significantDigits, intervals);
+            default:
+                System.err.println("WARNING: Reservoir must be 'exponential' or 'hdr'. Using the default. Reservoir: " + type);
+                return null;
+        }
+    }
+
+    private static long reportingPeriod(Map<Object, Object> config) {
+        Map<Object, Object> properties = (Map<Object, Object>) config.get("properties");
+        Number period = properties != null ? (Number) properties.get("period") : null;
+        return period != null ? period.longValue() : 20;
+    }
+
+    private Rules parseRules(Map<Object, Object> config) {
+        List<String> includes = (List<String>) config.get("includes");
+        if(includes == null) {
+            includes = Collections.emptyList();
+        }
+        List<String> excludes = (List<String>) config.get("excludes");
+        if(excludes == null) {
+            excludes = Collections.emptyList();
+        }
+        Rules r = new Rules(includes, excludes);
+        r.cacheKey = String.join("\n", String.valueOf(includes), String.valueOf(excludes),
+                String.valueOf(config.get("parameters")), String.valueOf(config.get("tagBy")),
+                String.valueOf(trackFailures), String.valueOf(timeAsync), CtClass.version,
+                methodEntryProbe, longCaptureProbe, doubleCaptureProbe, objectCaptureProbe,
+                longTagProbe, doubleTagProbe, objectTagProbe, wrappedTagProbe,
+                methodExitProbe, asyncMethodExitProbe, methodFailureProbe);
+        List<Map<String, String>> parameters = (List<Map<String, String>>) config.get("parameters");
         if (parameters != null) {
             for (Map<String, String> p : parameters) {
                 String name = p.get("name");
@@ -100,100 +370,833 @@ public class MetjoTransformer implements ClassFileTransformer {
                     String method = param.substring(0, i);
                     String index = param.substring(i + 1);
                     int paramIndex = Integer.valueOf(index);
-                    List<CapturedParameter> entry = capturedParameters.get(method);
+                    List<CapturedParameter> entry = r.capturedParameters.get(method);
                     if (entry == null) {
                         entry = new ArrayList<>();
-                        capturedParameters.put(method, entry);
+                        r.capturedParameters.put(method, entry);
                     }
-                    Updateable receiver = null;
-                    if("histogram".equals(aggregation)) {
-                        receiver = new HistogramWrapper(registry.histogram(name));
-                    } else if("summation".equals(aggregation)) {
-                        SummationGauge g = new SummationGauge();
-                        registry.register(name, g);
-                        receiver = g;
-                    } else {
-                        System.err.println("Aggregation must be 'summation' or 'histogram'. Skipping parameter " + name);
+                    Updateable receiver = createReceiver(name, aggregation);
+                    if(receiver == null) {
+                        System.err.println("Aggregation must be 'summation', 'histogram', 'count', 'min', 'max' or 'rate'. Skipping parameter " + name);
                         continue;
                     }
                     entry.add(new CapturedParameter(paramIndex, name, receiver));
-                    MethodEntryListener.setCapturedParameters(capturedParameters);
                 } catch (NumberFormatException e) {
                     System.err.println("WARNING: Last part of parameter specifier must be integer. Skipping. Parameter: " + param);
                     continue;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("WARNING: Metric name is used by a different kind of metric. Skipping parameter " + name);
+                    continue;
+                }
+            }
+        }
+        List<Map<String, Object>> sampling = (List<Map<String, Object>>) config.get("sampling");
+        if (sampling != null) {
+            for (Map<String, Object> sm : sampling) {
+                String pattern = (String) sm.get("pattern");
+                Number rate = (Number) sm.get("rate");
+                Number perSecond = (Number) sm.get("perSecond");
+                if (pattern == null || (rate == null) == (perSecond == null)) {
+                    System.err.println("WARNING: Sampling needs a pattern and either 'rate' or 'perSecond'. Skipping. Pattern: " + pattern);
+                    continue;
+                }
+                r.samplingRules.add(rate != null
+                        ? new SamplingRule(pattern, rate.intValue(), 0)
+                        : new SamplingRule(pattern, 1, perSecond.doubleValue()));
+                if (perSecond != null && samplingAdjusterStarted.compareAndSet(false, true)) {
+                    Housekeeper.schedule(() -> {
+                        for (MethodMetrics m : adaptivelySampled) {
+                            m.adjustSampling();
+                        }
+                    }, 1, TimeUnit.SECONDS);
                 }
             }
         }
+        List<Map<String, Object>> tagBy = (List<Map<String, Object>>) config.get("tagBy");
+        if (tagBy != null) {
+            for (Map<String, Object> tm : tagBy) {
+                Object param = tm.get("parameter");
+                int i = param instanceof String ? ((String) param).lastIndexOf('.') : -1;
+                if (i == -1) {
+                    System.err.println("WARNING: Invalid syntax of tagBy parameter. Skipping. Parameter: " + param);
+                    continue;
+                }
+                String method = ((String) param).substring(0, i);
+                int index;
+                try {
+                    index = Integer.valueOf(((String) param).substring(i + 1));
+                } catch (NumberFormatException e) {
+                    System.err.println("WARNING: Last part of parameter specifier must be integer. Skipping. Parameter: " + param);
+                    continue;
+                }
+                if (r.tagRules.containsKey(method)) {
+                    System.err.println("WARNING: A method can only be tagged by one parameter. Skipping. Parameter: " + param);
+                    continue;
+                }
+                Object name = tm.get("name");
+                Number maxValues = (Number) tm.get("maxValues");
+                Number minCount = (Number) tm.get("minCount");
+                r.tagRules.put(method, new TagRule(index, name != null ? name.toString() : "arg" + index,
+                        maxValues != null ? maxValues.intValue() : 20, minCount != null ? minCount.intValue() : 10));
+            }
+        }
+        List<Map<String, Object>> resources = (List<Map<String, Object>>) config.get("resources");
+        if (resources != null) {
+            for (Map<String, Object> rm : resources) {
+                String pattern = (String) rm.get("pattern");
+                if (pattern == null) {
+                    System.err.println("WARNING: Resource measurement needs a pattern. Skipping.");
+                    continue;
+                }
+                Number rate = (Number) rm.get("rate");
+                r.resourceRules.add(new ResourceRule(pattern, rate != null ? rate.intValue() : 1,
+                        !Boolean.FALSE.equals(rm.get("cpu")), !Boolean.FALSE.equals(rm.get("allocation"))));
+            }
+        }
+        Map<Object, Object> concurrency = (Map<Object, Object>) config.get("concurrency");
+        if (concurrency != null) {
+            List<String> patterns = (List<String>) concurrency.get("patterns");
+            if (patterns != null) {
+                r.concurrency = new PatternMatcher(patterns);
+                r.concurrencyConfig = concurrency;
+            } else {
+                System.err.println("WARNING: Concurrency needs a list of patterns. Skipping.");
+            }
+        }
+        return r;
     }
 
-    private static WildcardFileFilter[] createFilters(List<String> strings) {
-        WildcardFileFilter[] result = new WildcardFileFilter[strings.size()];
-        for(int idx = 0; idx < strings.size(); ++idx) {
-            result[idx] = new WildcardFileFilter(strings.get(idx));
+    private Updateable createReceiver(String name, String aggregation) {
+        switch (aggregation) {
+            case "histogram":
+                return new HistogramWrapper(histogram(name));
+            case "summation":
+                return gauge(name, SummationGauge.class, SummationGauge::new);
+            case "count":
+                return new CounterWrapper(registry.counter(name));
+            case "min":
+                return gauge(name, MinimumGauge.class, MinimumGauge::new);
+            case "max":
+                return gauge(name, MaximumGauge.class, MaximumGauge::new);
+            case "rate":
+                return new MeterWrapper(registry.meter(name));
+            default:
+                return null;
         }
-        return result;
     }
 
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        // Decide as much as possible before parsing the class. Most classes loaded by a JVM can't match
+        // any pattern and aren't annotated, and we don't want to pay for parsing those.
+        //
+        if (className == null || isAgentClass(className)) {
+            return null;
+        }
+        long start = System.nanoTime();
         try {
-            ClassPool pool = ClassPool.getDefault();
-            CtClass clazz = pool.makeClass(new ByteArrayInputStream(classfileBuffer));
-
-            //System.err.println(clazz.getName());
-            boolean touched = false;
-            for (CtBehavior behavior : clazz.getDeclaredBehaviors()) {
-                if (behavior.isEmpty()
-                        || Modifier.isNative(behavior.getModifiers())
-                        || behavior.getName().equals("<clinit>")
-                        || behavior.getName().startsWith("access$")) {
-                    continue;
-                }
-                boolean absolute = true;
-                boolean annotated = behavior.hasAnnotation(Timed.class);
-                if(annotated) {
-                    absolute = ((Timed) behavior.getAnnotation(Timed.class)).absolute();
+            return compiler().transform(loader, className, classfileBuffer, classBeingRedefined == null);
+        } finally {
+            transformTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Compiler compiler() {
+        Compiler c = compiler;
+        if (c == null) {
+            synchronized (this) {
+                if (compiler == null) {
+                    compiler = new Compiler();
                 }
-                String fullMethodName = className.replace('/', '.') + "." + behavior.getName();
-                //System.err.println(fullMethodName + " " + annotated);
-                if(!(annotated
-                        || (match(includes, fullMethodName)
-                        && !match(excludes, fullMethodName)))) {
-                    continue;
+                c = compiler;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Registers the methods of a cached class under the ids its probes use. Fails if any of them has another
+     * id or has been disabled by the governor, in which case the class has to be transformed again.
+     */
+    private boolean restore(Rules r, String dottedName, BytecodeCache.Entry entry) {
+        for (int i = 0; i < entry.getMethodCount(); ++i) {
+            int id = resolveMethodId(r, entry.getName(i), entry.getFullMethodName(i));
+            if (id != entry.getId(i) || MethodEntryListener.getMethod(id).isDisabled()) {
+                return false;
+            }
+        }
+        if (entry.getMethodNames() != null) {
+            scannedClasses.put(dottedName.substring(0, dottedName.length() - 1), entry.getMethodNames());
+        }
+        if (entry.getBytes() != null) {
+            classesInstrumented.inc();
+            methodsInstrumented.inc(entry.getMethodCount());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the gauge registered under a name, creating it if needed, so that a reloaded configuration
+     * keeps accumulating into the same gauge.
+     */
+    private Updateable gauge(String name, Class<? extends Updateable> type, MetricRegistry.MetricSupplier<Gauge> supplier) {
+        Gauge g = registry.gauge(name, supplier);
+        if (!type.isInstance(g)) {
+            throw new IllegalArgumentException("Metric " + name + " already exists");
+        }
+        return (Updateable) g;
+    }
+
+    private static boolean isAgentClass(String className) {
+        for (String prefix : agentPackages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(byte[] buffer, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= buffer.length - pattern.length; ++i) {
+            for (int j = 0; j < pattern.length; ++j) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
                 }
+            }
+            return true;
+        }
+        return false;
+    }
 
-                System.err.println("Instrumenting method: " + fullMethodName + " mods=" + behavior.getModifiers());
-                try {
-                    touched |= instrument(behavior, absolute ? fullMethodName : behavior.getName(), fullMethodName);
-                } catch (CannotCompileException e) {
-                    System.err.println("Instrumentation failed: " + e.getMessage());
+    /**
+     * Returns the id of the metrics slot for a method, registering it on first use. Overloads and
+     * classes that are transformed more than once share the same slot.
+     */
+    private int resolveMethodId(Rules r, String methodName, String fullMethodName) {
+        String key = methodName + '|' + fullMethodName;
+        synchronized (methodIds) {
+            Integer id = methodIds.get(key);
+            if (id == null) {
+                MethodMetrics m = newMethodMetrics(r, methodName, fullMethodName);
+
+                // Cached classes refer to methods by the ids they had when they were cached.
+                //
+                id = cache != null ? cache.getReservedId(key) : null;
+                if (id != null) {
+                    MethodEntryListener.registerMethod(m, id);
+                } else {
+                    id = MethodEntryListener.registerMethod(m);
+                    if (cache != null) {
+                        cache.addId(id, key);
+                    }
                 }
+                methodIds.put(key, id);
             }
-            return touched ? clazz.toBytecode() : null;
-        } catch (Exception e) {
-            System.err.println("Instrumentation failed: " + e.getMessage());
-            throw new RuntimeException("Error instrumenting class " + className);
+            return id;
         }
     }
 
-    private boolean instrument(CtBehavior behavior, String methodName, String fullMethodName)
-            throws CannotCompileException {
-        boolean includeArgs = capturedParameters.containsKey(fullMethodName);
-        Object entryArgs = new Object[]{ methodName, fullMethodName };
-        MessageFormat format = includeArgs ? methodEntryProbeWithArgs : methodEntryProbe;
-        behavior.insertBefore(format.format(entryArgs));
-        Object exitArgs = new Object[0];
-        behavior.insertAfter(methodExitProbe.format(exitArgs), true);
+    /**
+     * Lists the name and full name of each method of a class that would be instrumented, so that ids can be
+     * given to them up front with {@link #resolveMethodId(String, String)}.
+     */
+    List<String[]> selectMethods(ClassLoader loader, String className, byte[] classfileBuffer)
+            throws IOException, ClassNotFoundException {
+        if (isAgentClass(className)) {
+            return Collections.emptyList();
+        }
+        return compiler().selectMethods(loader, className, classfileBuffer);
+    }
 
-        return true;
+    int resolveMethodId(String methodName, String fullMethodName) {
+        return resolveMethodId(rules, methodName, fullMethodName);
+    }
+
+    /**
+     * Makes the probes of classes transformed from now on refer to methods by their position in a table,
+     * offset by where the table ends up at runtime, rather than by the ids they have in this JVM.
+     *
+     * @param positions the position of each method in the table, by id.
+     * @return a class that registers the table when it's initialized, to be shipped with the classes.
+     */
+    byte[] useIdTable(String className, Map<Integer, Integer> positions) throws CannotCompileException, IOException {
+        byte[] bytes = compiler().makeIdTable(className, positions.size());
+        idExpression = id -> className + ".BASE + " + positions.get(id);
+        return bytes;
+    }
+
+    /**
+     * Registers a method that was instrumented offline under an id set aside for its table. A method that
+     * has another id already, because it was instrumented in more than one run, is timed by the same
+     * metrics under both.
+     */
+    public void registerMethod(int id, String methodName, String fullMethodName) {
+        String key = methodName + '|' + fullMethodName;
+        synchronized (methodIds) {
+            Integer existing = methodIds.get(key);
+            if (existing != null) {
+                MethodEntryListener.registerMethod(MethodEntryListener.getMethod(existing), id);
+            } else {
+                MethodEntryListener.registerMethod(newMethodMetrics(rules, methodName, fullMethodName), id);
+                methodIds.put(key, id);
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the methods this transformer has given ids to, in ascending order.
+     */
+    int[] getMethodIds() {
+        synchronized (methodIds) {
+            return methodIds.values().stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+    }
+
+    private MethodMetrics newMethodMetrics(Rules r, String methodName, String fullMethodName) {
+        boolean sampled = r.findSamplingRule(fullMethodName) != null;
+        Timer timer = timer(methodName, sampled);
+        if (sampled && !(timer instanceof SampledTimer)) {
+            System.err.println("WARNING: Timer " + methodName + " is shared with an unsampled method. Sampling is disabled for " + fullMethodName);
+        }
+        // Constructors that throw are timed along with the ones that don't, see instrument(), so they
+        // get no failure timer that would always be empty.
+        //
+        MethodMetrics m = trackFailures && !isConstructor(fullMethodName)
+                ? new MethodMetrics(methodName, fullMethodName, timer,
+                        timer(methodName + ".failed", timer instanceof SampledTimer), registry)
+                : new MethodMetrics(methodName, fullMethodName, timer);
+        configure(r, m);
+        return m;
+    }
+
+    /**
+     * Tells constructors by their names, which are the names of their classes, since the name is all that's
+     * known about methods of cached classes and classes instrumented offline.
+     */
+    private static boolean isConstructor(String fullMethodName) {
+        int dot = fullMethodName.lastIndexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        String className = fullMethodName.substring(fullMethodName.lastIndexOf('.', dot - 1) + 1, dot);
+        return fullMethodName.substring(dot + 1).equals(className);
+    }
+
+    private Timer timer(String name, boolean sampled) {
+        if (!sampled) {
+            return reservoirs != null
+                    ? registry.timer(name, () -> new Timer(reservoirs.get()))
+                    : registry.timer(name);
+        }
+        return registry.timer(name, reservoirs != null
+                ? () -> new SampledTimer(reservoirs.get())
+                : SampledTimer::new);
     }
 
-    private boolean match(WildcardFileFilter[] patterns, String name) {
-        File f = new File(name);
-        for(WildcardFileFilter p : patterns) {
-            if(p.accept(f))
+    private Histogram histogram(String name) {
+        return reservoirs != null
+                ? registry.histogram(name, () -> new Histogram(reservoirs.get()))
+                : registry.histogram(name);
+    }
+
+    private void configure(Rules r, MethodMetrics m) {
+        SamplingRule rule = r.findSamplingRule(m.getFullMethodName());
+        m.configure(r.capturedParameters.get(m.getFullMethodName()),
+                rule != null ? rule.interval : 1, rule != null ? rule.perSecond : 0);
+
+        if (r.concurrency != null && r.concurrency.matches(m.getFullMethodName())) {
+            if (concurrencyMonitor == null) {
+                concurrencyMonitor = new ConcurrencyMonitor(registry, r.concurrencyConfig, reportingPeriod);
+                concurrencyMonitor.start();
+            }
+            try {
+                m.setInFlight(concurrencyMonitor.inFlight(m));
+            } catch (IllegalArgumentException e) {
+                System.err.println("WARNING: Metric name is used by a different kind of metric. Not counting calls in progress of " + m.getFullMethodName());
+            }
+        } else {
+            m.setInFlight(null);
+        }
+
+        ResourceRule rr = r.findResourceRule(m.getFullMethodName());
+        if (rr != null && ResourceUsage.isSupported()) {
+            try {
+                m.setResources(new ResourceUsage(rr.interval,
+                        rr.cpu ? histogram(m.getName() + ".cpuTime") : null,
+                        rr.allocation ? histogram(m.getName() + ".allocatedBytes") : null));
+            } catch (IllegalArgumentException e) {
+                System.err.println("WARNING: Metric name is used by a different kind of metric. Not measuring resources of " + m.getFullMethodName());
+            }
+        } else {
+            m.setResources(null);
+        }
+
+        // Keep the sketch if the settings are the same, so that the values already seen keep their timers.
+        //
+        TagRule tr = r.tagRules.get(m.getFullMethodName());
+        TagSketch tags = m.getTags();
+        if (tr == null) {
+            m.setTags(null);
+        } else if (tags == null || !tags.hasSettings(tr.index, m.getName() + "." + tr.name + ".", tr.maxValues, tr.minCount)) {
+            boolean sampled = m.getTimer() instanceof SampledTimer;
+            m.setTags(new TagSketch(tr.index, m.getName() + "." + tr.name + ".", tr.maxValues, tr.minCount,
+                    name -> timer(name, sampled)));
+        }
+        if (m.isAdaptivelySampled()) {
+            if (!adaptivelySampled.contains(m)) {
+                adaptivelySampled.add(m);
+            }
+        } else {
+            adaptivelySampled.remove(m);
+        }
+    }
+
+    /**
+     * Switches to a new configuration. Methods that are already instrumented pick up new sampling settings
+     * right away, and only classes whose instrumentation actually changes are retransformed.
+     */
+    public void reconfigure(Map<Object, Object> config, Instrumentation instrumentation) {
+        Rules old = rules;
+        Rules r = parseRules(config);
+        verbose = Boolean.TRUE.equals(config.get("verbose"));
+        synchronized (methodIds) {
+            rules = r;
+            for (int id : methodIds.values()) {
+                configure(r, MethodEntryListener.getMethod(id));
+            }
+        }
+
+        // Classes we have looked at before are affected if the decision for any of their methods has changed.
+        // Classes the old patterns ruled out up front are affected if the new patterns could match them.
+        //
+        Set<String> affected = new HashSet<>();
+        for (Map.Entry<String, String[]> e : scannedClasses.entrySet()) {
+            if (isAffected(old, r, e.getKey(), e.getValue())) {
+                affected.add(e.getKey());
+            }
+        }
+        affected.addAll(findUnscanned(r, instrumentation));
+        System.err.println("INFO: Configuration changed. Retransforming " + affected.size() + " classes.");
+        retransform(instrumentation, affected);
+    }
+
+    /**
+     * Retransforms the loaded classes the include patterns could match. Used when attaching to a running JVM.
+     */
+    public void retransformMatching(Instrumentation instrumentation) {
+        Set<String> classes = findUnscanned(rules, instrumentation);
+        System.err.println("INFO: Retransforming " + classes.size() + " already loaded classes.");
+        retransform(instrumentation, classes);
+    }
+
+    private Set<String> findUnscanned(Rules r, Instrumentation instrumentation) {
+        Set<String> result = new HashSet<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            String name = c.getName();
+            // Lambda classes are spun at runtime and can't be retransformed.
+            //
+            if (!scannedClasses.containsKey(name)
+                    && !c.isArray()
+                    && !name.contains("$$Lambda$")
+                    && !isAgentClass(name.replace('.', '/'))
+                    && r.includes.matchesPrefix(name + ".")) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAffected(Rules old, Rules r, String className, String[] methodNames) {
+        String prefix = className + ".";
+        PatternMatcher.State oldIncluded = old.includes.start().advance(prefix);
+        PatternMatcher.State oldExcluded = old.excludes.start().advance(prefix);
+        PatternMatcher.State included = r.includes.start().advance(prefix);
+        PatternMatcher.State excluded = r.excludes.start().advance(prefix);
+        for (String name : methodNames) {
+            boolean wasIncluded = old.isIncluded(oldIncluded, oldExcluded, name);
+            if (wasIncluded != r.isIncluded(included, excluded, name)) {
                 return true;
+            }
+            if (wasIncluded && !sameIndexes(old.capturedParameters.get(prefix + name), r.capturedParameters.get(prefix + name))) {
+                return true;
+            }
+            if (wasIncluded && tagIndex(old.tagRules.get(prefix + name)) != tagIndex(r.tagRules.get(prefix + name))) {
+                return true;
+            }
         }
         return false;
     }
+
+    private static int tagIndex(TagRule rule) {
+        return rule != null ? rule.index : -1;
+    }
+
+    private static boolean sameIndexes(List<CapturedParameter> a, List<CapturedParameter> b) {
+        int n = a != null ? a.size() : 0;
+        if (n != (b != null ? b.size() : 0)) {
+            return false;
+        }
+        for (int i = 0; i < n; ++i) {
+            if (a.get(i).getIndex() != b.get(i).getIndex()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retransforms every loaded class with one of the given names, regardless of its class loader.
+     */
+    public static void retransform(Instrumentation instrumentation, Set<String> classNames) {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            if (classNames.contains(c.getName()) && instrumentation.isModifiableClass(c)) {
+                classes.add(c);
+            }
+        }
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+        } catch (Exception | LinkageError e) {
+            System.err.println("WARNING: Retransformation failed: " + e);
+        }
+    }
+
+    private final class Compiler {
+        private final ClassPool systemPool = new ClassPool(true);
+        private final Map<ClassLoader, ClassPool> classPools = new WeakHashMap<>();
+
+        private Compiler() {
+            // The probes refer to the listener, which the loader of an instrumented class may not see, such
+            // as when instrumenting offline. On newer JVMs the system path doesn't cover the class path either.
+            //
+            systemPool.appendClassPath(new ClassClassPath(MethodEntryListener.class));
+        }
+
+        private byte[] transform(ClassLoader loader, String className, byte[] classfileBuffer, boolean cacheable) {
+            Rules r = rules;
+            String dottedName = className.replace('/', '.') + ".";
+            PatternMatcher.State included = r.includes.start().advance(dottedName);
+            if (included.isDead() && !contains(classfileBuffer, timedDescriptor)) {
+                return null;
+            }
+
+            // Classes being retransformed are left out, since the governor may have disabled some of their methods.
+            //
+            String cacheKey = null;
+            if (cache != null && cacheable) {
+                cacheKey = cache.key(r.cacheKey, className, classfileBuffer);
+                BytecodeCache.Entry entry = cache.get(cacheKey);
+                if (entry != null && restore(r, dottedName, entry)) {
+                    cache.hit();
+                    return entry.getBytes();
+                }
+                cache.miss();
+            }
+            if (contains(classfileBuffer, listenerName)) {
+                return null;
+            }
+            CtClass clazz = null;
+            try {
+                ClassPool pool = getClassPool(loader);
+                clazz = pool.makeClass(new ByteArrayInputStream(classfileBuffer));
+                classesScanned.inc();
+
+                //System.err.println(clazz.getName());
+                PatternMatcher.State excluded = r.excludes.start().advance(dottedName);
+                CtBehavior[] behaviors = clazz.getDeclaredBehaviors();
+                String[] methodNames = null;
+                if (!included.isDead()) {
+                    methodNames = new String[behaviors.length];
+                    for (int i = 0; i < behaviors.length; ++i) {
+                        methodNames[i] = behaviors[i].getName();
+                    }
+                    scannedClasses.put(clazz.getName(), methodNames);
+                }
+                List<Integer> ids = new ArrayList<>();
+                List<String> names = new ArrayList<>();
+                List<String> fullMethodNames = new ArrayList<>();
+                boolean touched = false;
+                boolean failed = false;
+                for (CtBehavior behavior : behaviors) {
+                    String methodName = methodName(r, included, excluded, dottedName, behavior);
+                    if (methodName == null) {
+                        continue;
+                    }
+
+                    // Leave out methods the governor has found too expensive to time. If it changes its mind,
+                    // the class is retransformed.
+                    //
+                    String fullMethodName = dottedName + behavior.getName();
+                    int id = resolveMethodId(r, methodName, fullMethodName);
+                    if(MethodEntryListener.getMethod(id).isDisabled()) {
+                        continue;
+                    }
+
+                    if (verbose) {
+                        System.err.println("INFO: Instrumenting method: " + fullMethodName + " mods=" + behavior.getModifiers());
+                    }
+                    try {
+                        touched |= instrument(behavior, id, fullMethodName);
+                        methodsInstrumented.inc();
+                        ids.add(id);
+                        names.add(methodName);
+                        fullMethodNames.add(fullMethodName);
+                    } catch (CannotCompileException e) {
+                        transformFailures.inc();
+                        failed = true;
+                        System.err.println("Instrumentation failed: " + e.getMessage());
+                    }
+                }
+                byte[] result = touched ? clazz.toBytecode() : null;
+                if (cacheKey != null && !failed) {
+                    int[] idArray = new int[ids.size()];
+                    for (int i = 0; i < idArray.length; ++i) {
+                        idArray[i] = ids.get(i);
+                    }
+                    cache.put(cacheKey, new BytecodeCache.Entry(methodNames, idArray,
+                            names.toArray(new String[names.size()]),
+                            fullMethodNames.toArray(new String[fullMethodNames.size()]), result));
+                }
+                if (result != null) {
+                    classesInstrumented.inc();
+                }
+                return result;
+            } catch (Exception e) {
+                transformFailures.inc();
+                System.err.println("Instrumentation failed: " + e.getMessage());
+                throw new RuntimeException("Error instrumenting class " + className);
+            } finally {
+                // Don't let the pool hold on to every class we've looked at.
+                //
+                if (clazz != null) {
+                    clazz.detach();
+                }
+            }
+        }
+
+        /**
+         * Lists the name and full name of each method transform would instrument, without instrumenting
+         * them.
+         */
+        private List<String[]> selectMethods(ClassLoader loader, String className, byte[] classfileBuffer)
+                throws IOException, ClassNotFoundException {
+            Rules r = rules;
+            String dottedName = className.replace('/', '.') + ".";
+            PatternMatcher.State included = r.includes.start().advance(dottedName);
+            List<String[]> methods = new ArrayList<>();
+            if ((included.isDead() && !contains(classfileBuffer, timedDescriptor))
+                    || contains(classfileBuffer, listenerName)) {
+                return methods;
+            }
+            CtClass clazz = getClassPool(loader).makeClass(new ByteArrayInputStream(classfileBuffer));
+            try {
+                PatternMatcher.State excluded = r.excludes.start().advance(dottedName);
+                for (CtBehavior behavior : clazz.getDeclaredBehaviors()) {
+                    String methodName = methodName(r, included, excluded, dottedName, behavior);
+                    if (methodName != null) {
+                        methods.add(new String[] { methodName, dottedName + behavior.getName() });
+                    }
+                }
+                return methods;
+            } finally {
+                clazz.detach();
+            }
+        }
+
+        /**
+         * @return the name of the metrics of a method, or null if it isn't instrumented.
+         */
+        private String methodName(Rules r, PatternMatcher.State included, PatternMatcher.State excluded,
+                                  String dottedName, CtBehavior behavior) throws ClassNotFoundException {
+            if (behavior.isEmpty()
+                    || Modifier.isNative(behavior.getModifiers())
+                    || behavior.getName().equals("<clinit>")
+                    || behavior.getName().startsWith("access$")) {
+                return null;
+            }
+            boolean absolute = true;
+            boolean annotated = behavior.hasAnnotation(Timed.class);
+            if(annotated) {
+                absolute = ((Timed) behavior.getAnnotation(Timed.class)).absolute();
+            }
+            String fullMethodName = dottedName + behavior.getName();
+            //System.err.println(fullMethodName + " " + annotated);
+            if(!(annotated || r.isIncluded(included, excluded, behavior.getName()))) {
+                return null;
+            }
+            return absolute ? fullMethodName : behavior.getName();
+        }
+
+        /**
+         * Makes a class whose BASE is where a table of methods instrumented offline starts at runtime. The
+         * class is also put in the pool, so that probes referring to it compile.
+         */
+        private byte[] makeIdTable(String className, int count) throws CannotCompileException, IOException {
+            CtClass table = systemPool.getOrNull(className);
+            if (table != null) {
+                table.detach();
+            }
+            table = systemPool.makeClass(className);
+            table.setModifiers(Modifier.PUBLIC | Modifier.FINAL);
+            CtField base = new CtField(CtClass.intType, "BASE", table);
+            base.setModifiers(Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL);
+            table.addField(base, CtField.Initializer.byExpr(
+                    "net.virtualviking.metjo.Agent.registerOfflineMethods(" + className + ".class, " + count + ")"));
+            return table.toBytecode();
+        }
+
+        /**
+         * Returns the pool used for compiling probes into classes defined by the given loader. Each loader gets
+         * its own pool, so that types are resolved the way the loader would resolve them, and so that the pool
+         * can be collected along with the loader.
+         */
+        private ClassPool getClassPool(ClassLoader loader) {
+            if (loader == null) {
+                return systemPool;
+            }
+            synchronized (classPools) {
+                ClassPool pool = classPools.get(loader);
+                if (pool == null) {
+                    pool = new ClassPool(systemPool);
+                    pool.childFirstLookup = true;
+                    pool.appendClassPath(new LoaderClassPath(loader));
+                    classPools.put(loader, pool);
+                }
+                return pool;
+            }
+        }
+
+        private boolean instrument(CtBehavior behavior, int id, String fullMethodName)
+                throws CannotCompileException {
+            String idRef = idExpression.apply(id);
+            StringBuilder entry = new StringBuilder("{");
+            entry.append(MessageFormat.format(methodEntryProbe, idRef));
+            char[] types = parameterTypes(behavior.getSignature());
+            TagSketch tags = MethodEntryListener.getMethod(id).getTags();
+            if (tags != null) {
+                int index = tags.getParameterIndex();
+                if (index >= 0 && index < types.length) {
+                    entry.append(MessageFormat.format(tagProbe(types[index]), idRef, index + 1,
+                            types[index] == 'Z' ? "Boolean" : "Character"));
+                } else {
+                    System.err.println("WARNING: Parameter index out of range. Skipping. Parameter: " + fullMethodName + "." + index);
+                }
+            }
+
+            // Pass each captured argument as a primitive, so that neither an argument array nor boxed
+            // values are created on every call.
+            //
+            CapturedParameter[] cps = MethodEntryListener.getMethod(id).getParameters();
+            for (int slot = 0; slot < cps.length; ++slot) {
+                int index = cps[slot].getIndex();
+                if (index < 0 || index >= types.length) {
+                    System.err.println("WARNING: Parameter index out of range. Skipping. Parameter: " + fullMethodName + "." + index);
+                    continue;
+                }
+                String probe;
+                switch (types[index]) {
+                    case 'B':
+                    case 'S':
+                    case 'I':
+                    case 'J':
+                        probe = longCaptureProbe;
+                        break;
+                    case 'F':
+                    case 'D':
+                        probe = doubleCaptureProbe;
+                        break;
+                    case 'L':
+                        probe = objectCaptureProbe;
+                        break;
+                    default:
+                        continue; // Just silently skip anything that can't be a number.
+                }
+                entry.append(MessageFormat.format(probe, idRef, slot, index + 1));
+            }
+            entry.append('}');
+            behavior.insertBefore(entry.toString());
+
+            // A catch handler can't cover the call to the super constructor, so constructors that throw are
+            // timed along with the ones that don't.
+            //
+            boolean async = timeAsync && behavior instanceof CtMethod && returnsCompletionStage((CtMethod) behavior);
+            if (async || (trackFailures && behavior instanceof CtMethod)) {
+                behavior.insertAfter(async ? asyncMethodExitProbe : methodExitProbe, false);
+                try {
+                    behavior.addCatch(methodFailureProbe, behavior.getDeclaringClass().getClassPool().get("java.lang.Throwable"));
+                } catch (NotFoundException e) {
+                    throw new CannotCompileException(e);
+                }
+            } else {
+                behavior.insertAfter(methodExitProbe, true);
+            }
+
+            return true;
+        }
+
+        private boolean returnsCompletionStage(CtMethod method) {
+            String descriptor = method.getSignature();
+            String returnType = descriptor.substring(descriptor.indexOf(')') + 1);
+            if (returnType.equals("Ljava/util/concurrent/CompletableFuture;")
+                    || returnType.equals("Ljava/util/concurrent/CompletionStage;")) {
+                return true;
+            }
+            if (!returnType.startsWith("L") || returnType.startsWith("Ljava/lang/")) {
+                return false;
+            }
+            try {
+                ClassPool pool = method.getDeclaringClass().getClassPool();
+                return method.getReturnType().subtypeOf(pool.get("java.util.concurrent.CompletionStage"));
+            } catch (NotFoundException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Returns the probe that passes an argument of the given type to tagBy without boxing it, where
+         * possible.
+         */
+        private String tagProbe(char type) {
+            switch (type) {
+                case 'B':
+                case 'S':
+                case 'I':
+                case 'J':
+                    return longTagProbe;
+                case 'F':
+                case 'D':
+                    return doubleTagProbe;
+                case 'Z':
+                case 'C':
+                    return wrappedTagProbe;
+                default:
+                    return objectTagProbe;
+            }
+        }
+
+        /**
+         * Returns the JVM type code of each parameter in a method descriptor. Object types are reported as 'L'
+         * and arrays as '['.
+         */
+        private char[] parameterTypes(String descriptor) {
+            StringBuilder types = new StringBuilder();
+            int i = descriptor.indexOf('(') + 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                types.append(c);
+                while (descriptor.charAt(i) == '[') {
+                    ++i;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                ++i;
+            }
+            return types.toString().toCharArray();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring buffer of timer updates. The thread owning the buffer adds updates
+ * to it, and the drainer applies them to the shared timers in batches, so that application threads don't
+ * fight over the cache lines of the timers.
+ */
+public class MetricBuffer {
+    private final int[] ids;
+
+    private final long[] durations;
+
+    private final int[] weights;
+
+    private final int[] tags;
+
+    private final int mask;
+
+    private final boolean dropOnOverflow;
+
+    // Next entry to drain. Only written by the drainer.
+    //
+    private final AtomicLong head = new AtomicLong();
+
+    // Next entry to fill. Only written by the owner, and published with lazySet since the drainer doesn't
+    // need to see new entries right away.
+    //
+    private final AtomicLong tail = new AtomicLong();
+
+    // The owner's copies of tail and of the last head it has seen, so that adding an entry normally
+    // doesn't read anything the drainer writes.
+    //
+    private long localTail;
+
+    private long cachedHead;
+
+    private volatile long dropped;
+
+    private volatile long overflowed;
+
+    public MetricBuffer(int capacity, boolean dropOnOverflow) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.ids = new int[size];
+        this.durations = new long[size];
+        this.weights = new int[size];
+        this.tags = new int[size];
+        this.mask = size - 1;
+        this.dropOnOverflow = dropOnOverflow;
+    }
+
+    /**
+     * Called by the owner. When the buffer is full, the update is either dropped or applied directly.
+     */
+    public void record(int id, long duration, int weight, int tag) {
+        long t = localTail;
+        if(t - cachedHead > mask) {
+            cachedHead = head.get();
+            if(t - cachedHead > mask) {
+                if(dropOnOverflow) {
+                    ++dropped;
+                } else {
+                    ++overflowed;
+                    MethodEntryListener.updateTimer(id, duration, weight, tag);
+                }
+                return;
+            }
+        }
+        int i = (int) t & mask;
+        ids[i] = id;
+        durations[i] = duration;
+        weights[i] = weight;
+        tags[i] = tag;
+        localTail = t + 1;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Called by the drainer. Applies every update added so far.
+     */
+    public void drain() {
+        long h = head.get();
+        long t = tail.get();
+        for(; h < t; ++h) {
+            int i = (int) h & mask;
+            MethodEntryListener.updateTimer(ids[i], durations[i], weights[i], tags[i]);
+        }
+        head.lazySet(t);
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getOverflowed() {
+        return overflowed;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out per-thread buffers for timer updates and periodically applies their contents to the timers.
+ * The drain period should be well below the reporting period, so that reports are at most one drain
+ * period behind.
+ *
+ * Configuration (all optional):
+ * <pre>
+ * buffering:
+ *   capacity: 4096     # Updates per thread, rounded up to a power of two
+ *   period: 200        # Milliseconds between drains
+ *   overflow: direct   # What to do when a buffer is full. 'direct' updates the timer right away, 'drop' discards
+ * </pre>
+ */
+public class MetricBufferDrainer implements Runnable {
+    private final int capacity;
+
+    private final long period;
+
+    private final boolean dropOnOverflow;
+
+    // Buffers of live threads, along with the threads owning them.
+    //
+    private final List<MetricBuffer> buffers = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    // Counts from the buffers of threads that have died.
+    //
+    private long retiredDropped;
+
+    private long retiredOverflowed;
+
+    private volatile long dropped;
+
+    private volatile long overflowed;
+
+    public MetricBufferDrainer(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        this.capacity = Config.getNumber(config, "capacity", 4096).intValue();
+        this.period = Config.getNumber(config, "period", 200).longValue();
+        Object overflow = config != null ? config.get("overflow") : null;
+        if(overflow == null || "direct".equals(overflow)) {
+            dropOnOverflow = false;
+        } else if("drop".equals(overflow)) {
+            dropOnOverflow = true;
+        } else {
+            throw new MetjoException("Buffer overflow must be 'direct' or 'drop'");
+        }
+        registry.register("metjo.buffer.dropped", (Gauge<Long>) () -> dropped);
+        registry.register("metjo.buffer.overflowed", (Gauge<Long>) () -> overflowed);
+    }
+
+    public void start() {
+        MethodEntryListener.setMetricBufferDrainer(this);
+        Housekeeper.schedule(this, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by a thread the first time it enters an instrumented method.
+     */
+    synchronized MetricBuffer newBuffer(Thread owner) {
+        MetricBuffer buffer = new MetricBuffer(capacity, dropOnOverflow);
+        buffers.add(buffer);
+        threads.add(owner);
+        return buffer;
+    }
+
+    @Override
+    public synchronized void run() {
+        long d = retiredDropped;
+        long o = retiredOverflowed;
+        for(int i = buffers.size() - 1; i >= 0; --i) {
+            MetricBuffer buffer = buffers.get(i);
+
+            // Check before draining, so that nothing a dead thread wrote can be left behind.
+            //
+            boolean dead = !threads.get(i).isAlive();
+            buffer.drain();
+            d += buffer.getDropped();
+            o += buffer.getOverflowed();
+            if(dead) {
+                retiredDropped += buffer.getDropped();
+                retiredOverflowed += buffer.getOverflowed();
+                buffers.remove(i);
+                threads.remove(i);
+            }
+        }
+        dropped = d;
+        overflowed = o;
+    }
+}
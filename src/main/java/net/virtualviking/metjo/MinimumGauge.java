@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the minimum value seen so far. Updates that don't change the result only read the current value,
+ * so concurrent callers don't contend unless they actually move the minimum.
+ */
+public class MinimumGauge implements Gauge<Number>, Updateable {
+    private final AtomicLong value = new AtomicLong(Long.MAX_VALUE);
+
+    // Floating point values are kept apart as raw bits, so that whole values don't lose precision.
+    //
+    private final AtomicLong doubleValue = new AtomicLong(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+
+    @Override
+    public Number getValue() {
+        long v = value.get();
+        double d = Double.longBitsToDouble(doubleValue.get());
+        if(d == Double.POSITIVE_INFINITY) {
+            return v != Long.MAX_VALUE ? v : null;
+        }
+        return v != Long.MAX_VALUE ? Math.min((double) v, d) : d;
+    }
+
+    @Override
+    public void update(long value) {
+        long current = this.value.get();
+        while (value < current && !this.value.compareAndSet(current, value)) {
+            current = this.value.get();
+        }
+    }
+
+    @Override
+    public void update(double value) {
+        long current = doubleValue.get();
+        while (value < Double.longBitsToDouble(current) && !doubleValue.compareAndSet(current, Double.doubleToRawLongBits(value))) {
+            current = doubleValue.get();
+        }
+    }
+}
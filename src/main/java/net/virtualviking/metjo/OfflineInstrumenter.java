@@ -0,0 +1,374 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import javassist.CannotCompileException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Instruments jars and class directories ahead of time, using the same configuration as the agent. The
+ * output only needs the agent jar on the class path, not as an agent, and doesn't touch javassist at
+ * runtime. Every output gets a table of the methods its probes refer to and a copy of the configuration,
+ * which {@link Agent} picks up the first time an instrumented method runs. Each table is given ids of its
+ * own when it's registered, so outputs of separate runs can be used together.
+ *
+ * <pre>
+ * java -cp metjo.jar net.virtualviking.metjo.OfflineInstrumenter [options] &lt;config&gt; &lt;in&gt; &lt;out&gt; [&lt;in&gt; &lt;out&gt;...]
+ *   --threads &lt;n&gt;        Number of classes to instrument in parallel. Defaults to the number of processors
+ *   --classpath &lt;path&gt;   Where to find classes the input refers to, such as its dependencies
+ * </pre>
+ */
+public class OfflineInstrumenter {
+    static final String CONFIG_RESOURCE = "META-INF/metjo/metjo.yaml";
+
+    // Tables are named after a digest of their contents, so that outputs with different tables never
+    // shadow each other's.
+    //
+    private static final String TABLE_PACKAGE = "net.virtualviking.metjo.offline.Methods";
+
+    static final String TABLE_SUFFIX = ".methods";
+
+    private static class Item {
+        private final String name;
+
+        private final byte[] bytes;
+
+        private String className;
+
+        private Future<List<String[]>> methods;
+
+        private Future<byte[]> result;
+
+        private byte[] output;
+
+        private Item(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    private final MetjoTransformer transformer;
+
+    private final Counter failures;
+
+    private final byte[] config;
+
+    private final URL[] classpath;
+
+    private final ExecutorService executor;
+
+    // Each worker resolves classes through a loader of its own, so that no class pool is shared between threads.
+    //
+    private final List<URLClassLoader> loaders = new ArrayList<>();
+
+    private final ThreadLocal<URLClassLoader> loader = ThreadLocal.withInitial(this::newLoader);
+
+    private int classes;
+
+    private int instrumented;
+
+    public OfflineInstrumenter(File configFile, List<File> classpath, int threads) throws IOException {
+        this.config = Files.readAllBytes(configFile.toPath());
+        this.transformer = new MetjoTransformer(new MetricRegistry(), Agent.loadConfig(configFile.getPath()));
+        this.failures = transformer.getRegistry().counter("metjo.transform.failures");
+        this.classpath = new URL[classpath.size()];
+        for(int i = 0; i < this.classpath.length; ++i) {
+            this.classpath[i] = classpath.get(i).toURI().toURL();
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Instruments the classes of a jar or directory. The classpath given to the constructor must include it.
+     * Nothing is written if any class or method can't be instrumented.
+     */
+    public void instrument(File in, File out) throws IOException, MetjoException {
+        List<Item> items = in.isDirectory() ? readDirectory(in) : readJar(in);
+        long failed = failures.getCount();
+        List<Item> classItems = new ArrayList<>();
+        for(Item item : items) {
+            if(item.name.endsWith(".class")) {
+                item.className = item.name.substring(0, item.name.length() - 6);
+                item.methods = executor.submit(() -> selectMethods(item.className, item.bytes));
+                classItems.add(item);
+            }
+        }
+        classes += classItems.size();
+
+        // Number the methods in the order of the class names rather than in the order the workers get to the
+        // classes, so that the same input gets the same table every time.
+        //
+        classItems.sort(Comparator.comparing(item -> item.className));
+        Map<Integer, Integer> positions = new LinkedHashMap<>();
+        StringBuilder table = new StringBuilder();
+        for(Item item : classItems) {
+            for(String[] method : get(item.methods)) {
+                int id = transformer.resolveMethodId(method[0], method[1]);
+                if(positions.putIfAbsent(id, positions.size()) == null) {
+                    table.append(positions.get(id)).append('\t').append(method[0]).append('\t').append(method[1]).append('\n');
+                }
+            }
+        }
+        byte[] tableBytes = table.toString().getBytes(StandardCharsets.UTF_8);
+        String tableClass = TABLE_PACKAGE + digest(tableBytes);
+        byte[] tableClassBytes;
+        try {
+            tableClassBytes = transformer.useIdTable(tableClass, positions);
+        } catch(CannotCompileException e) {
+            throw new MetjoException("Could not make the method table of " + in + ": " + e.getMessage());
+        }
+        String tablePath = tableClass.replace('.', '/');
+        items.add(new Item(tablePath + ".class", tableClassBytes));
+        items.add(new Item(tablePath + TABLE_SUFFIX, tableBytes));
+        items.add(new Item(CONFIG_RESOURCE, config));
+
+        for(Item item : classItems) {
+            item.result = executor.submit(() -> transform(item.className, item.bytes));
+        }
+
+        for(Item item : items) {
+            item.output = result(item);
+        }
+        failed = failures.getCount() - failed;
+        if(failed > 0) {
+            throw new MetjoException("Could not instrument " + failed + " classes or methods of " + in);
+        }
+
+        // Write in the original order, so that the manifest stays first in a jar.
+        //
+        if(in.isDirectory()) {
+            for(Item item : items) {
+                write(new File(out, item.name), item.output);
+            }
+        } else {
+            try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(out.toPath()))) {
+                for(Item item : items) {
+                    jar.putNextEntry(new JarEntry(item.name));
+                    jar.write(item.output);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        executor.shutdown();
+        for(URLClassLoader l : loaders) {
+            l.close();
+        }
+    }
+
+    private List<String[]> selectMethods(String className, byte[] bytes) {
+        try {
+            return transformer.selectMethods(loader.get(), className, bytes);
+        } catch(Exception e) {
+            // Left to transform, which reports and counts the failure.
+            //
+            return Collections.emptyList();
+        }
+    }
+
+    private byte[] transform(String className, byte[] bytes) {
+        try {
+            byte[] result = transformer.transform(loader.get(), className, null, null, bytes);
+            return result != null ? result : bytes;
+        } catch(Exception e) {
+            // The transformer has already said what went wrong, and counted the failure.
+            //
+            return bytes;
+        }
+    }
+
+    private byte[] result(Item item) throws IOException {
+        if(item.result == null) {
+            return item.bytes;
+        }
+        byte[] bytes = get(item.result);
+        if(bytes != item.bytes) {
+            ++instrumented;
+        }
+        return bytes;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch(ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private synchronized URLClassLoader newLoader() {
+        URLClassLoader l = new URLClassLoader(classpath, ClassLoader.getSystemClassLoader().getParent());
+        loaders.add(l);
+        return l;
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for(byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.substring(0, 16);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Item> readJar(File in) throws IOException, MetjoException {
+        List<Item> items = new ArrayList<>();
+        try (JarFile jar = new JarFile(in, false)) {
+            for(JarEntry entry : jar.stream().collect(Collectors.toList())) {
+                if(entry.isDirectory()) {
+                    continue;
+                }
+                if(entry.getName().startsWith("META-INF/metjo/")) {
+                    throw new MetjoException(in + " is already instrumented");
+                }
+                // Instrumented classes no longer match the signatures.
+                //
+                if(isSignature(entry.getName())) {
+                    System.err.println("INFO: Removing signature " + entry.getName() + " from " + in);
+                    continue;
+                }
+                try (InputStream is = jar.getInputStream(entry)) {
+                    items.add(new Item(entry.getName(), readAll(is)));
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return whether a class directory has been instrumented already.
+     */
+    public static boolean isInstrumented(File directory) {
+        return new File(directory, CONFIG_RESOURCE).exists();
+    }
+
+    private static List<Item> readDirectory(File in) throws IOException, MetjoException {
+        if(isInstrumented(in)) {
+            throw new MetjoException(in + " is already instrumented");
+        }
+        List<Item> items = new ArrayList<>();
+        Path root = in.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for(Path p : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                items.add(new Item(root.relativize(p).toString().replace(File.separatorChar, '/'), Files.readAllBytes(p)));
+            }
+        }
+        return items;
+    }
+
+    private static boolean isSignature(String name) {
+        if(!name.startsWith("META-INF/") || name.indexOf('/', 9) >= 0) {
+            return false;
+        }
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream os = Files.newOutputStream(file.toPath())) {
+            os.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> classpath = new ArrayList<>();
+        int i = 0;
+        for(; i < args.length - 1 && args[i].startsWith("--"); i += 2) {
+            if(args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if(args[i].equals("--classpath")) {
+                for(String p : args[i + 1].split(File.pathSeparator)) {
+                    classpath.add(new File(p));
+                }
+            } else {
+                usage();
+                return;
+            }
+        }
+        if(args.length - i < 3 || (args.length - i) % 2 != 1) {
+            usage();
+            return;
+        }
+        File config = new File(args[i++]);
+        for(int k = i; k < args.length; k += 2) {
+            classpath.add(new File(args[k]));
+        }
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(config, classpath, threads);
+        try {
+            for(; i < args.length; i += 2) {
+                instrumenter.instrument(new File(args[i]), new File(args[i + 1]));
+            }
+        } catch(MetjoException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            instrumenter.close();
+        }
+        System.err.println("INFO: Instrumented " + instrumenter.instrumented + " of " + instrumenter.classes + " classes.");
+    }
+
+    private static void usage() {
+        System.err.println("Usage: OfflineInstrumenter [--threads <n>] [--classpath <path>] <config> <in> <out> [<in> <out>...]");
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the calls of selected methods that took unusually long, along with the values of their captured
+ * parameters and the instrumented methods they were called from. Each method gets a threshold, which is
+ * a percentile of its timer and is updated in the background. Calls below it cost a single comparison.
+ * Calls above it are written to a ring shared by all threads, which is overwritten from the oldest end.
+ *
+ * Writers claim entries with a sequence number, and each entry has a version that is odd while it's
+ * being written, so neither writers nor readers ever lock. A writer that finds its entry still being
+ * written by a thread that has lapped the ring drops its call, and a reader skips entries that change
+ * while they're being read.
+ *
+ * The ring can be dumped on demand through JMX, with the dump operation of net.virtualviking.metjo:type=Outliers,
+ * and new outliers can be appended to a file periodically.
+ *
+ * Configuration (all optional except the patterns):
+ * <pre>
+ * outliers:
+ *   patterns:             # Methods to look for outliers in, like the include patterns
+ *     - "com.foo.Bar.*"
+ *   percentile: 0.99      # Calls slower than this percentile of the timer are outliers
+ *   minCount: 1000        # Calls a timer must have timed before the method gets a threshold
+ *   minDuration: 0        # Milliseconds. Calls faster than this are never outliers
+ *   interval: 5           # Seconds between threshold updates
+ *   capacity: 1024        # Outliers kept, rounded up to a power of two
+ *   stackDepth: 16        # Calling methods kept per outlier
+ *   parameters: 4         # Captured parameter values kept per outlier, at most 16
+ *   file: /tmp/outliers   # Where to append new outliers. Not written if left out
+ *   period: 10            # Seconds between appending to the file
+ * </pre>
+ */
+public class OutlierRecorder implements OutlierRecorderMBean {
+    // Entry layout: method id, thread id, start (nanoTime), duration, threshold, stack size, which
+    // parameters are doubles, parameter count and whether the call failed, then the stack and the parameters.
+    //
+    private static final int HEADER = 6;
+
+    private final PatternMatcher patterns;
+
+    private final double percentile;
+
+    private final long minCount;
+
+    private final long minDuration;
+
+    private final long interval;
+
+    private final int mask;
+
+    private final int stackDepth;
+
+    private final int parameterSlots;
+
+    private final int stride;
+
+    private final String file;
+
+    private final long period;
+
+    private final AtomicLong next = new AtomicLong();
+
+    private final AtomicLongArray versions;
+
+    private final AtomicLongArray entries;
+
+    private final AtomicReferenceArray<String> threadNames;
+
+    private final long startNanos = System.nanoTime();
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final Counter recorded;
+
+    private final Counter dropped;
+
+    // Whether each method id is looked at, once it has been decided. Only touched by the threshold updates.
+    //
+    private byte[] tracked = new byte[0];
+
+    // Sequence number of the first outlier not yet appended to the file.
+    //
+    private long appended;
+
+    public OutlierRecorder(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        List<String> p = (List<String>) config.get("patterns");
+        if(p == null) {
+            throw new MetjoException("Outliers need a list of patterns");
+        }
+        this.patterns = new PatternMatcher(p);
+        this.percentile = Config.getNumber(config, "percentile", 0.99).doubleValue();
+        if(percentile <= 0 || percentile >= 1) {
+            throw new MetjoException("Outlier percentile must be between 0 and 1");
+        }
+        this.minCount = Config.getNumber(config, "minCount", 1000).longValue();
+        this.minDuration = TimeUnit.MILLISECONDS.toNanos(Config.getNumber(config, "minDuration", 0).longValue());
+        this.interval = Config.getNumber(config, "interval", 5).longValue();
+        int capacity = Config.getNumber(config, "capacity", 1024).intValue();
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.mask = size - 1;
+        this.stackDepth = Config.getNumber(config, "stackDepth", 16).intValue();
+        this.parameterSlots = Config.getNumber(config, "parameters", 4).intValue();
+        if(parameterSlots < 0 || parameterSlots > EventRecorder.MAX_PARAMETERS) {
+            throw new MetjoException("Outlier parameters must be between 0 and " + EventRecorder.MAX_PARAMETERS);
+        }
+        this.stride = HEADER + stackDepth + parameterSlots;
+        this.versions = new AtomicLongArray(size);
+        this.entries = new AtomicLongArray(size * stride);
+        this.threadNames = new AtomicReferenceArray<>(size);
+        this.file = (String) config.get("file");
+        this.period = Config.getNumber(config, "period", 10).longValue();
+        this.recorded = registry.counter("metjo.outliers.recorded");
+        this.dropped = registry.counter("metjo.outliers.dropped");
+    }
+
+    public void start() {
+        MethodEntryListener.setOutlierRecorder(this);
+        Housekeeper.schedule(this::updateThresholds, interval, TimeUnit.SECONDS);
+        if(file != null) {
+            Housekeeper.schedule(this::append, period, TimeUnit.SECONDS);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("net.virtualviking.metjo:type=Outliers"));
+        } catch(JMException e) {
+            System.err.println("WARNING: Could not register outlier MBean. Outliers can't be dumped on demand. Reason: " + e);
+        }
+    }
+
+    int getParameterSlots() {
+        return parameterSlots;
+    }
+
+    /**
+     * Called by the thread making the call, when it has taken longer than the threshold of its method.
+     */
+    void record(int methodId, long threadId, String threadName, long start, long duration, long threshold, boolean failed,
+                int[] stack, int depth, long[] parameters, int offset, int parameterCount, int kinds) {
+        long seq = next.getAndIncrement();
+        int slot = (int) seq & mask;
+        long version = versions.get(slot);
+        if((version & 1) != 0 || !versions.compareAndSet(slot, version, 2 * seq + 1)) {
+            dropped.inc();
+            return;
+        }
+        int p = slot * stride;
+        int frames = Math.min(depth, stackDepth);
+        int count = Math.min(parameterCount, parameterSlots);
+        entries.lazySet(p, methodId);
+        entries.lazySet(p + 1, threadId);
+        entries.lazySet(p + 2, start);
+        entries.lazySet(p + 3, duration);
+        entries.lazySet(p + 4, threshold);
+        entries.lazySet(p + 5, (long) frames << 32 | (long) (kinds & ((1 << count) - 1)) << 16 | count << 1 | (failed ? 1 : 0));
+
+        // Nearest caller first.
+        //
+        for(int i = 0; i < frames; ++i) {
+            entries.lazySet(p + HEADER + i, stack[depth - 1 - i]);
+        }
+        for(int i = 0; i < count; ++i) {
+            entries.lazySet(p + HEADER + stackDepth + i, parameters[offset + i]);
+        }
+        threadNames.lazySet(slot, threadName);
+        versions.set(slot, 2 * seq + 2);
+        recorded.inc();
+    }
+
+    /**
+     * Sets the threshold of every method matching the patterns to the configured percentile of its timer.
+     */
+    private void updateThresholds() {
+        int n = MethodEntryListener.getMethodCount();
+        if(tracked.length < n) {
+            tracked = Arrays.copyOf(tracked, n);
+        }
+        for(int id = 0; id < n; ++id) {
+            MethodMetrics m = MethodEntryListener.getMethod(id);
+            if(m == null) {
+                continue;
+            }
+            if(tracked[id] == 0) {
+                tracked[id] = (byte) (patterns.matches(m.getFullMethodName()) ? 1 : 2);
+            }
+            Timer timer = m.getTimer();
+            if(tracked[id] == 1 && timer.getCount() >= minCount) {
+                m.setOutlierThreshold(Math.max((long) timer.getSnapshot().getValue(percentile), minDuration));
+            }
+        }
+    }
+
+    private void append() {
+        long end = next.get();
+        long from = Math.max(appended, end - mask - 1);
+        if(from == end) {
+            return;
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(file, true), false, "UTF-8")) {
+            print(out, from, end);
+        } catch(IOException e) {
+            System.err.println("WARNING: Could not write outliers to " + file + ": " + e);
+        }
+        appended = end;
+    }
+
+    @Override
+    public String dump() {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bos, false, "UTF-8");
+            long end = next.get();
+            print(out, Math.max(0, end - mask - 1), end);
+            out.flush();
+            return bos.toString("UTF-8");
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public long getRecorded() {
+        return recorded.getCount();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.getCount();
+    }
+
+    /**
+     * Prints the outliers with sequence numbers in the given range that are still in the ring, oldest first.
+     */
+    private void print(PrintStream out, long from, long to) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        long[] entry = new long[stride];
+        for(long seq = from; seq < to; ++seq) {
+            int slot = (int) seq & mask;
+            long version = versions.get(slot);
+            if(version != 2 * seq + 2) {
+                continue;
+            }
+            int p = slot * stride;
+            for(int i = 0; i < stride; ++i) {
+                entry[i] = entries.get(p + i);
+            }
+            String threadName = threadNames.get(slot);
+            if(versions.get(slot) != version) {
+                continue;
+            }
+            int methodId = (int) entry[0];
+            int frames = (int) (entry[5] >>> 32);
+            int count = (int) (entry[5] >> 1) & 0x7fff;
+            int kinds = (int) (entry[5] >> 16) & 0xffff;
+            StringBuilder sb = new StringBuilder();
+            sb.append(format.format(new Date(startMillis + (entry[2] - startNanos) / 1000000)))
+                    .append(' ').append(methodName(methodId))
+                    .append(String.format(" %.3f ms (threshold %.3f ms)", entry[3] / 1e6, entry[4] / 1e6));
+            if((entry[5] & 1) != 0) {
+                sb.append(" failed");
+            }
+            sb.append(" thread=").append(threadName).append(" (").append(entry[1]).append(')');
+            MetjoTransformer.CapturedParameter[] cps = MethodEntryListener.getMethod(methodId).getParameters();
+            for(int i = 0; i < count; ++i) {
+                String value = MetjoTransformer.CapturedParameter.format(entry[HEADER + stackDepth + i], (kinds & 1 << i) != 0);
+                if(i < cps.length) {
+                    sb.append(' ').append(cps[i].getName()).append('=').append(value);
+                } else {
+                    sb.append(" parameter").append(i).append('=').append(value);
+                }
+            }
+            out.println(sb);
+            for(int i = 0; i < frames; ++i) {
+                out.println("    called from " + methodName((int) entry[HEADER + i]));
+            }
+        }
+    }
+
+    private static String methodName(int id) {
+        MethodMetrics m = MethodEntryListener.getMethod(id);
+        return m != null ? m.getFullMethodName() : "#" + id;
+    }
+}
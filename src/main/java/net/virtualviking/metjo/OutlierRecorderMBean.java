@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+/**
+ * Management interface of {@link OutlierRecorder}, for dumping outliers on demand with a JMX client.
+ */
+public interface OutlierRecorderMBean {
+    /**
+     * @return the outliers still in the ring, oldest first, one per line followed by their callers.
+     */
+    String dump();
+
+    long getRecorded();
+
+    long getDropped();
+}
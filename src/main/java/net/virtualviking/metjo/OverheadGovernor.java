@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically estimates what the probes of each instrumented method cost and removes the instrumentation
+ * from methods that are both called very often and so short that the probes dominate their run time.
+ * Such methods are given another chance after a back-off period, which doubles every time they turn out
+ * to still be too hot.
+ *
+ * Configuration (all optional):
+ * <pre>
+ * governor:
+ *   budget: 0.01               # Max fraction of a CPU the probes of a single method may use
+ *   maxRelativeOverhead: 0.1   # Max probe cost relative to the mean duration of the method
+ *   probeCost: 50              # Estimated cost of an entry/exit probe pair in nanoseconds
+ *   period: 10                 # Seconds between evaluations
+ *   backoff: 60                # Seconds before re-instrumenting a method the first time
+ * </pre>
+ */
+public class OverheadGovernor implements Runnable {
+    private static final int MAX_BACKOFF_DOUBLINGS = 6;
+
+    private final Instrumentation instrumentation;
+
+    private final double budget;
+
+    private final double maxRelativeOverhead;
+
+    private final double probeCost;
+
+    private final long period;
+
+    private final long backoff;
+
+    private final Counter deinstrumented;
+
+    private final Counter reinstrumented;
+
+    private volatile int disabledCount;
+
+    private long lastRun = System.nanoTime();
+
+    private long[] lastCounts = new long[0];
+
+    private long[] reenableAt = new long[0];
+
+    private int[] strikes = new int[0];
+
+    public OverheadGovernor(Instrumentation instrumentation, MetricRegistry registry, Map<Object, Object> config) {
+        this.instrumentation = instrumentation;
+        this.budget = Config.getNumber(config, "budget", 0.01).doubleValue();
+        this.maxRelativeOverhead = Config.getNumber(config, "maxRelativeOverhead", 0.1).doubleValue();
+        this.probeCost = Config.getNumber(config, "probeCost", 50).doubleValue();
+        this.period = Config.getNumber(config, "period", 10).longValue();
+        this.backoff = TimeUnit.SECONDS.toNanos(Config.getNumber(config, "backoff", 60).longValue());
+        this.deinstrumented = registry.counter("metjo.governor.deinstrumented");
+        this.reinstrumented = registry.counter("metjo.governor.reinstrumented");
+        registry.register("metjo.governor.disabled", (Gauge<Integer>) () -> disabledCount);
+    }
+
+    public void start() {
+        Housekeeper.schedule(this, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRun) / 1e9;
+        lastRun = now;
+        int n = MethodEntryListener.getMethodCount();
+        if (lastCounts.length < n) {
+            int old = lastCounts.length;
+            lastCounts = Arrays.copyOf(lastCounts, n);
+            Arrays.fill(lastCounts, old, n, -1);
+            reenableAt = Arrays.copyOf(reenableAt, n);
+            strikes = Arrays.copyOf(strikes, n);
+        }
+        Set<String> changed = new HashSet<>();
+        int disabled = 0;
+        for (int id = 0; id < n; ++id) {
+            MethodMetrics m = MethodEntryListener.getMethod(id);
+            if (m == null) {
+                continue; // Reserved for a cached class that hasn't been loaded
+            }
+            long count = m.getTimer().getCount();
+            long calls = count - lastCounts[id];
+            boolean seen = lastCounts[id] >= 0;
+            lastCounts[id] = count;
+            if (m.isDisabled()) {
+                if (now - reenableAt[id] >= 0) {
+                    System.err.println("INFO: Restoring instrumentation of " + m.getFullMethodName());
+                    m.setDisabled(false);
+                    changed.add(m.getClassName());
+                    reinstrumented.inc();
+                } else {
+                    ++disabled;
+                }
+                continue;
+            }
+            if (!seen) {
+                continue; // We don't know how long it took to accumulate this count
+            }
+
+            // Estimate the share of a CPU spent in the probes of this method. The mean duration is only
+            // needed, and only computed, for methods over the budget.
+            //
+            double rate = calls / seconds;
+            double overhead = rate * probeCost / 1e9;
+            if (overhead <= budget) {
+                strikes[id] = 0;
+                continue;
+            }
+            double mean = m.getTimer().getSnapshot().getMean();
+            if (probeCost <= maxRelativeOverhead * mean) {
+                strikes[id] = 0;
+                continue;
+            }
+            long wait = backoff << Math.min(strikes[id]++, MAX_BACKOFF_DOUBLINGS);
+            System.err.println(String.format(
+                    "INFO: Removing instrumentation of %s for %d seconds: %.0f calls/s, mean %.0fns, estimated overhead %.2f%% of a CPU",
+                    m.getFullMethodName(), TimeUnit.NANOSECONDS.toSeconds(wait), rate, mean, overhead * 100));
+            m.setDisabled(true);
+            reenableAt[id] = now + wait;
+            changed.add(m.getClassName());
+            deinstrumented.inc();
+            ++disabled;
+        }
+        disabledCount = disabled;
+        MetjoTransformer.retransform(instrumentation, changed);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Matches names against a set of wildcard patterns, where '*' matches any sequence of characters and '?'
+ * matches exactly one character. The patterns are compiled into a trie which is then turned into a
+ * deterministic automaton lazily as names are matched, so that a lookup costs one table access per
+ * character regardless of the number of patterns.
+ *
+ * Matching can be resumed from any intermediate {@link State}. This allows a class name to be matched once
+ * and each of its method names to be matched from the resulting state.
+ */
+public final class PatternMatcher {
+    /**
+     * Upper bound on the number of automaton states kept. Beyond this, new states are still computed but
+     * neither shared nor cached as transitions, which bounds memory for pathological pattern sets at the
+     * cost of computing those states again on every lookup.
+     */
+    private static final int MAX_STATES = 4096;
+
+    private static final class Node {
+        private final int id;
+        private final Map<Character, Node> children = new HashMap<>();
+        private Node any;
+        private Node star;
+        private boolean loops;
+        private boolean accept;
+
+        private Node(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A point in the automaton, i.e. the set of pattern positions that are still alive after consuming a
+     * sequence of characters.
+     */
+    public final class State {
+        private final int[] nodeIds;
+        private final boolean accepting;
+        // Cached transitions, or null if the state isn't kept.
+        private final State[] ascii;
+
+        private State(int[] nodeIds, boolean kept) {
+            this.nodeIds = nodeIds;
+            this.ascii = kept ? new State[128] : null;
+            boolean a = false;
+            for (int id : nodeIds) {
+                a |= nodes.get(id).accept;
+            }
+            this.accepting = a;
+        }
+
+        public State advance(char c) {
+            if (ascii == null || c >= ascii.length) {
+                return transition(this, c);
+            }
+            State next = ascii[c];
+            if (next == null) {
+                next = transition(this, c);
+                if (next.ascii != null) {
+                    ascii[c] = next;
+                }
+            }
+            return next;
+        }
+
+        public State advance(CharSequence s) {
+            State state = this;
+            for (int i = 0; i < s.length() && !state.isDead(); ++i) {
+                state = state.advance(s.charAt(i));
+            }
+            return state;
+        }
+
+        /**
+         * @return true if the characters consumed so far form a complete match.
+         */
+        public boolean isAccepting() {
+            return accepting;
+        }
+
+        /**
+         * @return true if no continuation of the characters consumed so far can ever match.
+         */
+        public boolean isDead() {
+            return nodeIds.length == 0;
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    private final ConcurrentHashMap<List<Integer>, State> states = new ConcurrentHashMap<>();
+
+    private final AtomicInteger stateCount = new AtomicInteger();
+
+    private final State start;
+
+    public PatternMatcher(Collection<String> patterns) {
+        Node root = newNode();
+        for (String pattern : patterns) {
+            Node n = root;
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (c == '*') {
+                    if (n.loops) {
+                        continue; // Consecutive stars are equivalent to a single one
+                    }
+                    if (n.star == null) {
+                        n.star = newNode();
+                        n.star.loops = true;
+                    }
+                    n = n.star;
+                } else if (c == '?') {
+                    if (n.any == null) {
+                        n.any = newNode();
+                    }
+                    n = n.any;
+                } else {
+                    Node child = n.children.get(c);
+                    if (child == null) {
+                        child = newNode();
+                        n.children.put(c, child);
+                    }
+                    n = child;
+                }
+            }
+            n.accept = true;
+        }
+        start = intern(closure(Arrays.asList(root)));
+    }
+
+    public State start() {
+        return start;
+    }
+
+    public boolean matches(String name) {
+        return start.advance(name).isAccepting();
+    }
+
+    /**
+     * @return true if some name starting with the given prefix could match.
+     */
+    public boolean matchesPrefix(String prefix) {
+        return !start.advance(prefix).isDead();
+    }
+
+    private Node newNode() {
+        Node n = new Node(nodes.size());
+        nodes.add(n);
+        return n;
+    }
+
+    private State transition(State from, char c) {
+        List<Node> next = new ArrayList<>();
+        for (int id : from.nodeIds) {
+            Node n = nodes.get(id);
+            if (n.loops) {
+                next.add(n);
+            }
+            if (n.any != null) {
+                next.add(n.any);
+            }
+            Node child = n.children.get(c);
+            if (child != null) {
+                next.add(child);
+            }
+        }
+        return intern(closure(next));
+    }
+
+    /**
+     * Adds every node reachable by letting a star match the empty string and returns the sorted node ids.
+     */
+    private static int[] closure(List<Node> seeds) {
+        List<Node> all = new ArrayList<>(seeds);
+        for (int i = 0; i < all.size(); ++i) {
+            Node star = all.get(i).star;
+            if (star != null) {
+                all.add(star);
+            }
+        }
+        int[] ids = new int[all.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = all.get(i).id;
+        }
+        Arrays.sort(ids);
+        int size = 0;
+        for (int i = 0; i < ids.length; ++i) {
+            if (size == 0 || ids[size - 1] != ids[i]) {
+                ids[size++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, size);
+    }
+
+    private State intern(int[] nodeIds) {
+        List<Integer> key = new ArrayList<>(nodeIds.length);
+        for (int id : nodeIds) {
+            key.add(id);
+        }
+        State s = states.get(key);
+        if (s != null) {
+            return s;
+        }
+        if (stateCount.get() >= MAX_STATES) {
+            return new State(nodeIds, false);
+        }
+        s = new State(nodeIds, true);
+        State existing = states.putIfAbsent(key, s);
+        if (existing != null) {
+            return existing;
+        }
+        stateCount.incrementAndGet();
+        return s;
+    }
+}
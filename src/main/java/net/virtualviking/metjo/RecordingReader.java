@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns a recording made by {@link EventRecorder} into per-method statistics or a timeline of calls.
+ *
+ * <pre>
+ * java -cp metjo.jar net.virtualviking.metjo.RecordingReader &lt;recording&gt; [stats|timeline] [options]
+ *   --method &lt;text&gt;   Only calls of methods whose names contain the text
+ *   --thread &lt;id&gt;     Only calls made by the thread
+ *   --min &lt;ms&gt;        Only calls taking at least this long
+ *   --from &lt;ms&gt;       Only calls starting this long after the recording started
+ *   --to &lt;ms&gt;         Only calls starting before this long after the recording started
+ * </pre>
+ */
+public class RecordingReader {
+    private static class Call {
+        private final long threadId;
+
+        private final long start;
+
+        private final long duration;
+
+        private final int methodId;
+
+        private final long[] parameters;
+
+        private int depth;
+
+        // Which of the parameters are the bits of a double.
+        //
+        private final int kinds;
+
+        private Call(long threadId, long start, long duration, int methodId, long[] parameters, int kinds) {
+            this.threadId = threadId;
+            this.start = start;
+            this.duration = duration;
+            this.methodId = methodId;
+            this.parameters = parameters;
+            this.kinds = kinds;
+        }
+    }
+
+    private final List<Call> calls = new ArrayList<>();
+
+    private final Map<Integer, String[]> methods = new HashMap<>();
+
+    private long startNanos;
+
+    private long startMillis;
+
+    public RecordingReader(File recording) throws IOException, MetjoException {
+        try (RandomAccessFile raf = new RandomAccessFile(recording, "r")) {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(map.getLong(0) != EventRecorder.MAGIC || map.getInt(8) != EventRecorder.VERSION) {
+                throw new MetjoException(recording + " is not a recording");
+            }
+            int recordSize = map.getInt(12);
+            int regions = map.getInt(20);
+            long regionSize = map.getLong(24);
+            startNanos = map.getLong(32);
+            startMillis = map.getLong(40);
+            long capacity = (regionSize - EventRecorder.REGION_HEADER_SIZE) / recordSize;
+            for(int r = 0; r < regions; ++r) {
+                int region = (int) (EventRecorder.HEADER_SIZE + r * regionSize);
+                long count = map.getLong(region + 8);
+                for(long k = Math.max(0, count - capacity); k < count; ++k) {
+                    int p = region + EventRecorder.REGION_HEADER_SIZE + (int) (k % capacity) * recordSize;
+                    int counts = map.getInt(p + 28);
+                    long[] parameters = new long[counts & 0xffff];
+                    for(int i = 0; i < parameters.length; ++i) {
+                        parameters[i] = map.getLong(p + EventRecorder.RECORD_HEADER_SIZE + i * 8);
+                    }
+                    calls.add(new Call(map.getLong(p), map.getLong(p + 8), map.getLong(p + 16), map.getInt(p + 24), parameters,
+                            counts >>> 16));
+                }
+            }
+        }
+        File names = new File(recording.getPath() + ".methods");
+        if(names.exists()) {
+            for(String line : Files.readAllLines(names.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                methods.put(Integer.valueOf(parts[0]), parts);
+            }
+        }
+        calls.sort(Comparator.comparingLong((Call c) -> c.start).thenComparing(c -> -c.duration));
+    }
+
+    private String methodName(int id) {
+        String[] parts = methods.get(id);
+        return parts != null ? parts[1] : "method#" + id;
+    }
+
+    private String parameterName(int id, int index) {
+        String[] parts = methods.get(id);
+        if(parts == null || index + 2 >= parts.length) {
+            return "p" + index;
+        }
+        return parts[index + 2];
+    }
+
+    /**
+     * Keeps the calls matching the filters given on the command line. Returns false if an option was
+     * not understood.
+     */
+    private boolean filter(String[] args, int first) {
+        String method = null;
+        long thread = -1;
+        long min = 0;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for(int i = first; i < args.length; i += 2) {
+            if(i + 1 == args.length) {
+                return false;
+            }
+            switch (args[i]) {
+                case "--method":
+                    method = args[i + 1];
+                    break;
+                case "--thread":
+                    thread = Long.parseLong(args[i + 1]);
+                    break;
+                case "--min":
+                    min = (long) (Double.parseDouble(args[i + 1]) * 1e6);
+                    break;
+                case "--from":
+                    from = startNanos + (long) (Double.parseDouble(args[i + 1]) * 1e6);
+                    break;
+                case "--to":
+                    to = startNanos + (long) (Double.parseDouble(args[i + 1]) * 1e6);
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        // Work out the nesting before filtering, while the callers are still there.
+        //
+        Map<Long, ArrayDeque<Long>> stacks = new HashMap<>();
+        for(Call c : calls) {
+            ArrayDeque<Long> ends = stacks.computeIfAbsent(c.threadId, t -> new ArrayDeque<>());
+            while(!ends.isEmpty() && ends.peek() <= c.start) {
+                ends.pop();
+            }
+            c.depth = ends.size();
+            ends.push(c.start + c.duration);
+        }
+        List<Call> kept = new ArrayList<>();
+        for(Call c : calls) {
+            if((method == null || methodName(c.methodId).contains(method))
+                    && (thread == -1 || c.threadId == thread)
+                    && c.duration >= min && c.start >= from && c.start < to) {
+                kept.add(c);
+            }
+        }
+        calls.clear();
+        calls.addAll(kept);
+        return true;
+    }
+
+    public void printStats(PrintStream out) {
+        Map<String, Histogram> histograms = new TreeMap<>();
+        for(Call c : calls) {
+            histograms.computeIfAbsent(methodName(c.methodId), m -> new Histogram(3)).recordValue(Math.max(c.duration, 0));
+        }
+        out.printf("%10s %12s %10s %10s %10s %10s %10s %10s  %s%n",
+                "calls", "total_ms", "mean_ms", "min_ms", "p50_ms", "p99_ms", "p999_ms", "max_ms", "method");
+        for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            out.printf("%10d %12.3f %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f  %s%n",
+                    h.getTotalCount(), h.getMean() * h.getTotalCount() / 1e6, h.getMean() / 1e6, h.getMinValue() / 1e6,
+                    h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMaxValue() / 1e6, e.getKey());
+        }
+    }
+
+    public void printTimeline(PrintStream out) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        out.printf("%-12s %12s %8s %12s  %s%n", "time", "offset_ms", "thread", "duration_ms", "method");
+        for(Call c : calls) {
+            long offset = c.start - startNanos;
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < c.depth; ++i) {
+                sb.append("  ");
+            }
+            sb.append(methodName(c.methodId));
+            for(int i = 0; i < c.parameters.length; ++i) {
+                sb.append(i == 0 ? " (" : ", ").append(parameterName(c.methodId, i)).append('=')
+                        .append(MetjoTransformer.CapturedParameter.format(c.parameters[i], (c.kinds & 1 << i) != 0));
+            }
+            if(c.parameters.length > 0) {
+                sb.append(')');
+            }
+            out.printf("%-12s %12.3f %8d %12.3f  %s%n", format.format(new Date(startMillis + offset / 1000000)),
+                    offset / 1e6, c.threadId, c.duration / 1e6, sb);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            usage();
+            return;
+        }
+        boolean timeline = false;
+        int first = 1;
+        if(args.length > 1 && !args[1].startsWith("--")) {
+            if(!args[1].equals("stats") && !args[1].equals("timeline")) {
+                usage();
+                return;
+            }
+            timeline = args[1].equals("timeline");
+            first = 2;
+        }
+        RecordingReader reader = new RecordingReader(new File(args[0]));
+        if(!reader.filter(args, first)) {
+            usage();
+            return;
+        }
+        if(timeline) {
+            reader.printTimeline(System.out);
+        } else {
+            reader.printStats(System.out);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RecordingReader <recording> [stats|timeline] [--method <text>] [--thread <id>] "
+                + "[--min <ms>] [--from <ms>] [--to <ms>]");
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * The CPU time and heap allocation histograms of one method. The probes read the counters of the current
+ * thread when a measured call starts and ends, and the differences go into the histograms. Reading the
+ * CPU time costs many times more than reading the clock, so only one in every so many calls may be measured.
+ *
+ * Configuration:
+ * <pre>
+ * resources:
+ *   - pattern: "com.foo.Bar.*"   # Methods to measure, like the sampling patterns
+ *     rate: 10                   # Measure one in this many calls. Defaults to 1
+ *     cpu: true                  # Measure CPU time. Defaults to true
+ *     allocation: true           # Measure allocated bytes. Defaults to true
+ * </pre>
+ */
+public class ResourceUsage {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static final boolean cpuSupported = enableCpuTime();
+
+    private static final com.sun.management.ThreadMXBean allocations = enableAllocations();
+
+    // What reading the allocation counter allocates by itself, which is subtracted from every measurement.
+    //
+    private static final long allocationBias = allocations != null ? calibrate() : 0;
+
+    private final int interval;
+
+    private final Histogram cpuTime;
+
+    private final Histogram allocatedBytes;
+
+    ResourceUsage(int interval, Histogram cpuTime, Histogram allocatedBytes) {
+        this.interval = Math.max(interval, 1);
+        this.cpuTime = cpuSupported ? cpuTime : null;
+        this.allocatedBytes = allocations != null ? allocatedBytes : null;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or 0 if it isn't measured.
+     */
+    long cpuTime() {
+        return cpuTime != null ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * @return the bytes the current thread has allocated so far, or 0 if they aren't measured.
+     */
+    long allocatedBytes() {
+        return allocatedBytes != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    void update(long cpuTime, long allocatedBytes) {
+        if(this.cpuTime != null) {
+            this.cpuTime.update(cpuTime);
+        }
+        if(this.allocatedBytes != null) {
+            this.allocatedBytes.update(Math.max(allocatedBytes - allocationBias, 0));
+        }
+    }
+
+    static boolean isSupported() {
+        return cpuSupported || allocations != null;
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if(!threads.isCurrentThreadCpuTimeSupported()) {
+                System.err.println("WARNING: JVM can't measure thread CPU time. CPU time is not measured.");
+                return false;
+            }
+            if(!threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch(UnsupportedOperationException | SecurityException e) {
+            System.err.println("WARNING: Could not turn on thread CPU time measurement. CPU time is not measured. Reason: " + e);
+            return false;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean enableAllocations() {
+        try {
+            if(!(threads instanceof com.sun.management.ThreadMXBean)
+                    || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+                System.err.println("WARNING: JVM can't measure allocations per thread. Allocations are not measured.");
+                return null;
+            }
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+            if(!t.isThreadAllocatedMemoryEnabled()) {
+                t.setThreadAllocatedMemoryEnabled(true);
+            }
+            return t;
+        } catch(LinkageError | UnsupportedOperationException | SecurityException e) {
+            System.err.println("WARNING: Could not turn on allocation measurement. Allocations are not measured. Reason: " + e);
+            return null;
+        }
+    }
+
+    private static long calibrate() {
+        long id = Thread.currentThread().getId();
+        long bias = Long.MAX_VALUE;
+        for(int i = 0; i < 100; ++i) {
+            long start = allocations.getThreadAllocatedBytes(id);
+            bias = Math.min(bias, allocations.getThreadAllocatedBytes(id) - start);
+        }
+        return bias;
+    }
+}
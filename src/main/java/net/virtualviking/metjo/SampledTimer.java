@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Timer that is only updated for a sample of the calls. Each sample carries the number of calls it
+ * represents, and the count and rates are extrapolated from those weights. The duration distribution is
+ * built from the samples alone.
+ */
+public class SampledTimer extends Timer {
+    private final Meter calls = new Meter();
+
+    public SampledTimer() {
+    }
+
+    public SampledTimer(Reservoir reservoir) {
+        super(reservoir);
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        update(duration, unit, 1);
+    }
+
+    public void update(long duration, TimeUnit unit, int weight) {
+        super.update(duration, unit);
+        calls.mark(weight);
+    }
+
+    /**
+     * @return the number of calls actually timed, as opposed to the extrapolated count.
+     */
+    public long getSampleCount() {
+        return super.getCount();
+    }
+
+    @Override
+    public long getCount() {
+        return calls.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return calls.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return calls.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return calls.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return calls.getOneMinuteRate();
+    }
+}
@@ -18,19 +18,39 @@ package net.virtualviking.metjo;
 
 import com.codahale.metrics.Gauge;
 
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Created by prydin on 10/8/17.
  */
-public class SummationGauge implements Gauge<Long>, Updateable {
-    private long value;
+public class SummationGauge implements Gauge<Number>, Updateable {
+    private final LongAdder value = new LongAdder();
+
+    // Floating point values are summed separately, so that the sum of whole values stays exact.
+    //
+    private final DoubleAdder fractional = new DoubleAdder();
+
+    private volatile boolean floatingPoint;
 
     @Override
-    public Long getValue() {
-        return value;
+    public Number getValue() {
+        if(floatingPoint) {
+            return value.sum() + fractional.sum();
+        }
+        return value.sum();
     }
 
     @Override
     public void update(long value) {
-        this.value += value;
+        this.value.add(value);
+    }
+
+    @Override
+    public void update(double value) {
+        fractional.add(value);
+        if(!floatingPoint) {
+            floatingPoint = true;
+        }
     }
 }
@@ -0,0 +1,286 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Timer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Splits the timer of a method by the value of one of its arguments, without letting the number of timers
+ * grow with the number of values. Values are tracked with a space-saving sketch, and the first values seen
+ * at least minCount times get timers of their own, up to maxValues of them. Calls with any other value are
+ * timed by an "other" timer.
+ *
+ * Values that have a timer are found without locking. The sketch is only updated for the remaining
+ * values, and only if nobody else is updating it, so that callers never wait for each other.
+ */
+public class TagSketch {
+    // Bucket of the calls that aren't timed by value.
+    //
+    public static final int OTHER = 0;
+
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private final int parameterIndex;
+
+    private final String prefix;
+
+    private final int maxValues;
+
+    private final int minCount;
+
+    private final Function<String, Timer> timerFactory;
+
+    private final Map<Object, Integer> buckets = new ConcurrentHashMap<>();
+
+    // Values that got a timer through bucket(long) and bucket(double), so that they can be found without
+    // boxing them. Replaced while holding the lock.
+    //
+    private volatile Promoted longs = Promoted.EMPTY;
+
+    private volatile Promoted doubles = Promoted.EMPTY;
+
+    // Timers by bucket. A timer is stored before its bucket is published through the map.
+    //
+    private final Timer[] timers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile boolean full;
+
+    // The sketch of the values that don't have a timer yet. Only used while holding the lock.
+    //
+    private final Object[] candidates;
+
+    private final long[] counts;
+
+    // Upper bound of how much each count may be overestimated.
+    //
+    private final long[] errors;
+
+    private final Map<Object, Integer> candidateIndex = new HashMap<>();
+
+    private int candidateCount;
+
+    private int promoted;
+
+    public TagSketch(int parameterIndex, String prefix, int maxValues, int minCount, Function<String, Timer> timerFactory) {
+        this.parameterIndex = parameterIndex;
+        this.prefix = prefix;
+        this.maxValues = maxValues;
+        this.minCount = minCount;
+        this.timerFactory = timerFactory;
+        this.timers = new Timer[maxValues + 1];
+        this.timers[OTHER] = timerFactory.apply(prefix + "other");
+        this.candidates = new Object[maxValues * 2];
+        this.counts = new long[candidates.length];
+        this.errors = new long[candidates.length];
+        this.full = maxValues == 0;
+    }
+
+    public int getParameterIndex() {
+        return parameterIndex;
+    }
+
+    /**
+     * @return whether the sketch was made from the same settings, so that it can be kept across a reload.
+     */
+    boolean hasSettings(int parameterIndex, String prefix, int maxValues, int minCount) {
+        return this.parameterIndex == parameterIndex && this.prefix.equals(prefix)
+                && this.maxValues == maxValues && this.minCount == minCount;
+    }
+
+    /**
+     * @return the bucket a call with the given argument value belongs to.
+     */
+    public int bucket(Object value) {
+        Object key = key(value);
+        Integer b = buckets.get(key);
+        if (b != null) {
+            return b;
+        }
+        if (full || !lock.tryLock()) {
+            return OTHER;
+        }
+        try {
+            return offer(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like bucket(Object), but values that have a timer are found without boxing them, as is the "other"
+     * bucket once every timer is taken.
+     */
+    public int bucket(long value) {
+        int b = longs.find(value);
+        if (b != OTHER || full || !lock.tryLock()) {
+            return b;
+        }
+        try {
+            b = offer(Long.valueOf(value));
+            if (b != OTHER) {
+                longs = longs.with(value, b);
+            }
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like bucket(long), for floating point values. Values are told apart by their bits.
+     */
+    public int bucket(double value) {
+        long bits = Double.doubleToLongBits(value);
+        int b = doubles.find(bits);
+        if (b != OTHER || full || !lock.tryLock()) {
+            return b;
+        }
+        try {
+            b = offer(String.valueOf(value));
+            if (b != OTHER) {
+                doubles = doubles.with(bits, b);
+            }
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Timer getTimer(int bucket) {
+        return bucket >= 0 && bucket < timers.length ? timers[bucket] : null;
+    }
+
+    private int offer(Object key) {
+        Integer b = buckets.get(key);
+        if (b != null) {
+            return b;
+        }
+        Integer i = candidateIndex.get(key);
+        if (i == null) {
+            if (candidateCount < candidates.length) {
+                i = candidateCount++;
+                counts[i] = 0;
+                errors[i] = 0;
+            } else {
+                // Take over the slot of the least frequent value. The new value may have been seen as many
+                // times as that one, but not more.
+                //
+                i = 0;
+                for (int j = 1; j < candidateCount; ++j) {
+                    if (counts[j] < counts[i]) {
+                        i = j;
+                    }
+                }
+                candidateIndex.remove(candidates[i]);
+                errors[i] = counts[i];
+            }
+            candidates[i] = key;
+            candidateIndex.put(key, i);
+        }
+        if (++counts[i] - errors[i] < minCount) {
+            return OTHER;
+        }
+
+        // Seen often enough. Give the value a timer of its own and stop tracking it.
+        //
+        int bucket = ++promoted;
+        timers[bucket] = timerFactory.apply(prefix + sanitize(key.toString()));
+        buckets.put(key, bucket);
+        candidateIndex.remove(key);
+        int last = --candidateCount;
+        if (i != last) {
+            candidates[i] = candidates[last];
+            counts[i] = counts[last];
+            errors[i] = errors[last];
+            candidateIndex.put(candidates[i], i);
+        }
+        candidates[last] = null;
+        if (promoted == maxValues) {
+            full = true;
+            candidateIndex.clear();
+        }
+        return bucket;
+    }
+
+    /**
+     * Values are kept as they are when they can be compared cheaply and safely. Anything else is turned
+     * into a string, so that the sketch neither calls back into the object nor keeps it alive.
+     */
+    private static Object key(Object value) {
+        if (value instanceof String || value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte || value instanceof Character
+                || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return String.valueOf(value);
+    }
+
+    private static String sanitize(String value) {
+        StringBuilder sb = new StringBuilder(Math.min(value.length(), MAX_NAME_LENGTH));
+        for (int i = 0; i < value.length() && i < MAX_NAME_LENGTH; ++i) {
+            char c = value.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static final class Promoted {
+        static final Promoted EMPTY = new Promoted(new long[0], new int[0]);
+
+        private final long[] values;
+
+        private final int[] buckets;
+
+        private Promoted(long[] values, int[] buckets) {
+            this.values = values;
+            this.buckets = buckets;
+        }
+
+        int find(long value) {
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] == value) {
+                    return buckets[i];
+                }
+            }
+            return OTHER;
+        }
+
+        Promoted with(long value, int bucket) {
+            if (find(value) != OTHER) {
+                return this;
+            }
+            long[] v = Arrays.copyOf(values, values.length + 1);
+            int[] b = Arrays.copyOf(buckets, buckets.length + 1);
+            v[values.length] = value;
+            b[buckets.length] = bucket;
+            return new Promoted(v, b);
+        }
+    }
+}
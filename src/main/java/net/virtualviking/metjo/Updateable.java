@@ -18,4 +18,12 @@ package net.virtualviking.metjo;
 
 public interface Updateable {
     void update(long value);
+
+    /**
+     * Called with float and double parameters. Aggregations that can only hold whole numbers, such as
+     * histograms, truncate the value.
+     */
+    default void update(double value) {
+        update((long) value);
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reporter;
+import net.virtualviking.metjo.Config;
+import net.virtualviking.metjo.MetjoException;
+import net.virtualviking.metjo.ReporterFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class NioWavefrontFactory implements ReporterFactory {
+    @Override
+    public Reporter makeReporter(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        String proxy = (String) config.get("proxy");
+        if(proxy == null) {
+            throw new MetjoException("Proxy must be specified");
+        }
+        int port = Config.getNumber(config, "port", 2878).intValue();
+        int period = Config.getNumber(config, "period", 20).intValue();
+        String source = (String) config.get("source");
+        if(source == null) {
+            try {
+                source = InetAddress.getLocalHost().getHostName();
+            } catch(UnknownHostException e) {
+                source = "unknown";
+            }
+        }
+        Map<String, String> tags = new LinkedHashMap<>();
+        Map<Object, Object> pts = (Map<Object, Object>) config.get("pointtags");
+        if(pts != null) {
+            for(Map.Entry<Object, Object> e : pts.entrySet()) {
+                tags.put(e.getKey().toString(), e.getValue().toString());
+            }
+        }
+        NioWavefrontReporter rep = new NioWavefrontReporter(registry, proxy, port, source, tags,
+                Config.getNumber(config, "batchSize", 65536).intValue(), Config.getNumber(config, "maxBatches", 64).intValue(),
+                Config.getNumber(config, "flushInterval", 100).intValue(),
+                Config.getNumber(config, "reconnectInterval", 5000).intValue(),
+                Config.getNumber(config, "resolveTimeout", 5000).intValue());
+        rep.start(period, TimeUnit.SECONDS);
+        return rep;
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends metrics to a Wavefront proxy without ever blocking on the network. Points are encoded in the
+ * Wavefront line format straight into a pool of direct buffers, which are queued and written to a
+ * non-blocking socket. Whatever the proxy can't take right away stays queued and is retried, and when the
+ * queue is full the oldest batches are dropped. Reporting and sending run on the same thread, so none of
+ * the state needs to be synchronized. The proxy's address is looked up on a thread of its own, since
+ * looking up a name blocks.
+ */
+public class NioWavefrontReporter extends ScheduledReporter {
+    private static final class Batch {
+        private final ByteBuffer buffer;
+
+        private int points;
+
+        private Batch(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private final String host;
+
+    private final int port;
+
+    private final ScheduledExecutorService executor;
+
+    private final ExecutorService resolver;
+
+    // Ends every line: the source and the point tags.
+    //
+    private final byte[] lineEnd;
+
+    private final int batchSize;
+
+    private final int maxBatches;
+
+    private final long flushInterval;
+
+    private final long reconnectInterval;
+
+    private final long resolveTimeout;
+
+    // Batches waiting to be sent, oldest first. The first one may be partially sent.
+    //
+    private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+
+    private final ArrayDeque<Batch> free = new ArrayDeque<>();
+
+    private int allocated;
+
+    private Batch current;
+
+    private SocketChannel channel;
+
+    // Lookup of the proxy's address in progress, and when it was started.
+    //
+    private Future<InetSocketAddress> resolving;
+
+    private long resolveStart;
+
+    private long nextConnect;
+
+    private boolean failing;
+
+    private long timestamp;
+
+    private final TextEncoder encoder = new TextEncoder();
+
+    private final Counter sent;
+
+    private final Counter dropped;
+
+    public NioWavefrontReporter(MetricRegistry registry, String host, int port, String source, Map<String, String> pointTags,
+                                int batchSize, int maxBatches, long flushInterval, long reconnectInterval, long resolveTimeout) {
+        this(registry, host, port, source, pointTags, batchSize, maxBatches, flushInterval, reconnectInterval,
+                resolveTimeout, Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "metjo-wavefront");
+                    t.setDaemon(true);
+                    return t;
+                }));
+    }
+
+    private NioWavefrontReporter(MetricRegistry registry, String host, int port, String source, Map<String, String> pointTags,
+                                 int batchSize, int maxBatches, long flushInterval, long reconnectInterval,
+                                 long resolveTimeout, ScheduledExecutorService executor) {
+        super(registry, "wavefront-nio", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, executor);
+        this.host = host;
+        this.port = port;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxBatches = Math.max(maxBatches, 2);
+        this.flushInterval = flushInterval;
+        this.reconnectInterval = TimeUnit.MILLISECONDS.toNanos(reconnectInterval);
+        this.resolveTimeout = TimeUnit.MILLISECONDS.toNanos(resolveTimeout);
+        this.resolver = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metjo-wavefront-resolver");
+            t.setDaemon(true);
+            return t;
+        });
+        StringBuilder sb = new StringBuilder(" source=").append(quote(source));
+        for(Map.Entry<String, String> e : pointTags.entrySet()) {
+            sb.append(' ').append(sanitize(e.getKey())).append('=').append(quote(e.getValue()));
+        }
+        this.lineEnd = sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        this.sent = registry.counter("metjo.wavefront.sent");
+        this.dropped = registry.counter("metjo.wavefront.dropped");
+    }
+
+    @Override
+    public synchronized void start(long initialDelay, long period, TimeUnit unit) {
+        super.start(initialDelay, period, unit);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Throwable e) {
+                System.err.println("WARNING: Wavefront flush failed: " + e);
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the connection on the reporter thread, after whatever it's doing, and stops it.
+     */
+    @Override
+    public void stop() {
+        try {
+            executor.execute(this::disconnect);
+        } catch(RejectedExecutionException e) {
+            // Already stopped
+        }
+        super.stop();
+        resolver.shutdownNow();
+    }
+
+    @Override
+    public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                       SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                       SortedMap<String, Timer> timers) {
+        timestamp = System.currentTimeMillis() / 1000;
+        for(Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            Object value = e.getValue().getValue();
+            if(value instanceof Number) {
+                point(e.getKey(), "", ((Number) value).doubleValue());
+            }
+        }
+        for(Map.Entry<String, Counter> e : counters.entrySet()) {
+            point(e.getKey(), ".count", e.getValue().getCount());
+        }
+        for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            point(e.getKey(), ".count", e.getValue().getCount());
+            snapshot(e.getKey(), e.getValue().getSnapshot(), false);
+        }
+        for(Map.Entry<String, Meter> e : meters.entrySet()) {
+            metered(e.getKey(), e.getValue());
+        }
+        for(Map.Entry<String, Timer> e : timers.entrySet()) {
+            metered(e.getKey(), e.getValue());
+            snapshot(e.getKey(), e.getValue().getSnapshot(), true);
+        }
+        if(current != null && current.points > 0) {
+            enqueue(current);
+            current = null;
+        }
+        flush();
+    }
+
+    private void metered(String name, Metered m) {
+        point(name, ".count", m.getCount());
+        point(name, ".mean_rate", convertRate(m.getMeanRate()));
+        point(name, ".m1_rate", convertRate(m.getOneMinuteRate()));
+        point(name, ".m5_rate", convertRate(m.getFiveMinuteRate()));
+        point(name, ".m15_rate", convertRate(m.getFifteenMinuteRate()));
+    }
+
+    private void snapshot(String name, Snapshot s, boolean durations) {
+        point(name, ".min", scale(s.getMin(), durations));
+        point(name, ".max", scale(s.getMax(), durations));
+        point(name, ".mean", scale(s.getMean(), durations));
+        point(name, ".stddev", scale(s.getStdDev(), durations));
+        point(name, ".median", scale(s.getMedian(), durations));
+        point(name, ".p75", scale(s.get75thPercentile(), durations));
+        point(name, ".p95", scale(s.get95thPercentile(), durations));
+        point(name, ".p98", scale(s.get98thPercentile(), durations));
+        point(name, ".p99", scale(s.get99thPercentile(), durations));
+        point(name, ".p999", scale(s.get999thPercentile(), durations));
+    }
+
+    private double scale(double value, boolean duration) {
+        return duration ? convertDuration(value) : value;
+    }
+
+    /**
+     * Appends one line to the current batch, starting a new one if it doesn't fit.
+     */
+    private void point(String name, String suffix, double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        int needed = name.length() + suffix.length() + lineEnd.length + 64;
+        if(needed > batchSize) {
+            dropped.inc();
+            return;
+        }
+        if(current == null || current.buffer.remaining() < needed) {
+            if(current != null) {
+                enqueue(current);
+            }
+            current = take();
+        }
+        ByteBuffer b = current.buffer;
+        putName(b, name);
+        putName(b, suffix);
+        b.put((byte) ' ');
+        encoder.putDouble(b, value, 6);
+        b.put((byte) ' ');
+        encoder.putLong(b, timestamp);
+        b.put(lineEnd);
+        ++current.points;
+    }
+
+    private void enqueue(Batch batch) {
+        batch.buffer.flip();
+        queue.add(batch);
+    }
+
+    /**
+     * Returns an empty batch. When all batches are in use, the oldest one that hasn't started sending is
+     * dropped to make room.
+     */
+    private Batch take() {
+        Batch batch = free.poll();
+        if(batch == null) {
+            if(allocated < maxBatches) {
+                ++allocated;
+                batch = new Batch(batchSize);
+            } else {
+                for(Iterator<Batch> itor = queue.iterator(); itor.hasNext(); ) {
+                    Batch b = itor.next();
+                    if(b.buffer.position() == 0) {
+                        itor.remove();
+                        dropped.inc(b.points);
+                        batch = b;
+                        break;
+                    }
+                }
+            }
+        }
+        batch.buffer.clear();
+        batch.points = 0;
+        return batch;
+    }
+
+    private void flush() {
+        if(queue.isEmpty()) {
+            return;
+        }
+        try {
+            if(!connect()) {
+                return;
+            }
+            while(!queue.isEmpty()) {
+                Batch b = queue.peek();
+                channel.write(b.buffer);
+                if(b.buffer.hasRemaining()) {
+                    return; // The socket buffer is full. Try again later.
+                }
+                queue.poll();
+                sent.inc(b.points);
+                free.add(b);
+            }
+            if(failing) {
+                System.err.println("INFO: Sending metrics to Wavefront proxy " + host + ":" + port + " again");
+                failing = false;
+            }
+        } catch(IOException e) {
+            if(!failing) {
+                System.err.println("WARNING: Could not send metrics to Wavefront proxy " + host + ":" + port + ". Retrying. Reason: " + e);
+                failing = true;
+            }
+            disconnect();
+        }
+    }
+
+    private boolean connect() throws IOException {
+        if(channel == null) {
+            InetSocketAddress address = resolve();
+            if(address == null) {
+                return false;
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(address);
+        }
+        return !channel.isConnectionPending() || channel.finishConnect();
+    }
+
+    /**
+     * Looks the proxy up again before every connection attempt, so that a move to another address is
+     * noticed. Returns null until the lookup is done. A lookup taking longer than the timeout is
+     * abandoned and counts as a failed attempt.
+     */
+    private InetSocketAddress resolve() throws IOException {
+        long now = System.nanoTime();
+        if(resolving == null) {
+            if(now - nextConnect < 0) {
+                return null;
+            }
+            nextConnect = now + reconnectInterval;
+            resolveStart = now;
+            resolving = resolver.submit(() -> new InetSocketAddress(host, port));
+        }
+        if(!resolving.isDone()) {
+            if(now - resolveStart > resolveTimeout) {
+                resolving.cancel(true);
+                resolving = null;
+                throw new UnknownHostException("Timed out looking up " + host);
+            }
+            return null;
+        }
+        Future<InetSocketAddress> f = resolving;
+        resolving = null;
+        InetSocketAddress address;
+        try {
+            address = f.get();
+        } catch(InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        if(address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        return address;
+    }
+
+    /**
+     * Closes the connection. A partially sent batch is sent again from the start, since the proxy drops
+     * the half line it got. Resending the other lines is harmless, since they carry their timestamps.
+     */
+    private void disconnect() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // Nothing we can do about it
+            }
+            channel = null;
+        }
+        Batch head = queue.peek();
+        if(head != null) {
+            head.buffer.rewind();
+        }
+    }
+
+    private static void putName(ByteBuffer b, String name) {
+        for(int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            b.put((byte) (isNameChar(c) ? c : '_'));
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '/' || c == ',';
+    }
+
+    private static String sanitize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            sb.append(isNameChar(c) ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\"", "\\\"") + '"';
+    }
+}
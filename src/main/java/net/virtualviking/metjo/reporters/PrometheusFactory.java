@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reporter;
+import net.virtualviking.metjo.Config;
+import net.virtualviking.metjo.MetjoException;
+import net.virtualviking.metjo.ReporterFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+public class PrometheusFactory implements ReporterFactory {
+    @Override
+    public Reporter makeReporter(MetricRegistry registry, Map<Object, Object> config) throws MetjoException {
+        // Every property has a default, so there may not be any.
+        //
+        if(config == null) {
+            config = Collections.emptyMap();
+        }
+        int port = Config.getNumber(config, "port", 9404).intValue();
+        String path = (String) config.get("path");
+        try {
+            PrometheusReporter rep = new PrometheusReporter(registry, (String) config.get("host"), port,
+                    path != null ? path : "/metrics", Config.getNumber(config, "maxConnections", 16).intValue());
+            rep.start();
+            return rep;
+        } catch(IOException e) {
+            throw new MetjoException("Could not listen on port " + port + ": " + e.getMessage(), e);
+        }
+    }
+}
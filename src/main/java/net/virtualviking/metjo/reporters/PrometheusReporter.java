@@ -0,0 +1,598 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Reporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serves the metrics of a registry in the Prometheus text format over HTTP. Nothing is done until a scrape
+ * comes in. Everything runs on a single thread with non-blocking sockets, and each connection keeps its
+ * buffers across requests, so a scrape encodes the metrics straight into bytes that are already there. The
+ * sanitized names of metrics are kept too, and are only worked out when a metric is registered. What's left
+ * to allocate per scrape is what the metrics library itself allocates, which is the snapshots of timers
+ * and histograms.
+ *
+ * Timers become summaries in seconds, histograms summaries, meters and counters counters with a _total
+ * suffix, and numeric gauges gauges. Metrics whose names only differ in characters Prometheus doesn't allow
+ * would end up with the same name, so only the first of them is served.
+ */
+public class PrometheusReporter implements Reporter, Closeable, Runnable {
+    private static final class Connection {
+        private final ByteBuffer request = ByteBuffer.allocate(8192);
+
+        private final ByteBuffer header = ByteBuffer.allocate(256);
+
+        private ByteBuffer body;
+
+        private final ByteBuffer[] response = new ByteBuffer[2];
+
+        private boolean keepAlive;
+
+        private Connection(int bodySize) {
+            body = ByteBuffer.allocateDirect(bodySize);
+        }
+    }
+
+    private static final class Exported {
+        // The name with every character Prometheus doesn't allow replaced by an underscore.
+        //
+        private final byte[] name;
+
+        private final Metric metric;
+
+        // Every name the metric is served under.
+        //
+        private final String[] names;
+
+        private Exported(String name, Metric metric, String[] suffixes) {
+            this.name = new byte[name.length()];
+            for(int i = 0; i < name.length(); ++i) {
+                char ch = name.charAt(i);
+                boolean valid = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_' || ch == ':'
+                        || (i > 0 && ch >= '0' && ch <= '9');
+                this.name[i] = (byte) (valid ? ch : '_');
+            }
+            this.metric = metric;
+            this.names = new String[suffixes.length];
+            for(int i = 0; i < suffixes.length; ++i) {
+                names[i] = new String(this.name, StandardCharsets.US_ASCII) + suffixes[i];
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the metrics in the registry, since iterating over the values of a ConcurrentHashMap
+     * doesn't allocate, while iterating over the registry allocates for every metric.
+     */
+    private final class Listener implements MetricRegistryListener {
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge, GAUGE_SUFFIXES);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter, COUNTER_SUFFIXES);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram, SUMMARY_SUFFIXES);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter, COUNTER_SUFFIXES);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer, SUMMARY_SUFFIXES);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+
+        private void add(String name, Metric metric, String[] suffixes) {
+            Exported e = new Exported(name, metric, suffixes);
+            synchronized(owners) {
+                for(String n : e.names) {
+                    String owner = owners.get(n);
+                    if(owner != null && !owner.equals(name)) {
+                        System.err.println("WARNING: " + name + " has the same Prometheus name as " + owner + ". Skipping.");
+                        return;
+                    }
+                }
+                for(String n : e.names) {
+                    owners.put(n, name);
+                }
+                metrics.put(name, e);
+            }
+        }
+
+        private void remove(String name) {
+            synchronized(owners) {
+                Exported e = metrics.remove(name);
+                if(e != null) {
+                    for(String n : e.names) {
+                        owners.remove(n);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String[] GAUGE_SUFFIXES = { "" };
+
+    private static final String[] COUNTER_SUFFIXES = { "_total" };
+
+    private static final String[] SUMMARY_SUFFIXES = { "", "_sum", "_count" };
+
+    private static final byte[] CRLFCRLF = ascii("\r\n\r\n");
+
+    private static final byte[] TYPE = ascii("# TYPE ");
+
+    private static final byte[] GAUGE = ascii(" gauge\n");
+
+    private static final byte[] COUNTER = ascii(" counter\n");
+
+    private static final byte[] SUMMARY = ascii(" summary\n");
+
+    private static final byte[] TOTAL = ascii("_total");
+
+    private static final byte[] SUM = ascii("_sum ");
+
+    private static final byte[] COUNT = ascii("_count ");
+
+    private static final byte[][] QUANTILES = {
+            ascii("{quantile=\"0.5\"} "), ascii("{quantile=\"0.75\"} "), ascii("{quantile=\"0.95\"} "),
+            ascii("{quantile=\"0.98\"} "), ascii("{quantile=\"0.99\"} "), ascii("{quantile=\"0.999\"} ") };
+
+    private static final byte[] OK = ascii("HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+
+    private static final byte[] NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain\r\n");
+
+    private static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\nContent-Type: text/plain\r\n");
+
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+
+    private static final byte[] CLOSE = ascii("\r\nConnection: close\r\n\r\n");
+
+    private static final byte[] KEEP_ALIVE = ascii("\r\n\r\n");
+
+    private static final byte[] CONNECTION_CLOSE = ascii("connection: close");
+
+    private static final byte[] GET = ascii("GET");
+
+    private static final byte[] HEAD = ascii("HEAD");
+
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+
+    private final byte[] path;
+
+    private final int maxConnections;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel server;
+
+    private final Thread thread;
+
+    private final TextEncoder encoder = new TextEncoder();
+
+    private final ConcurrentMap<String, Exported> metrics = new ConcurrentHashMap<>();
+
+    // The metric each name that is served belongs to.
+    //
+    private final Map<String, String> owners = new HashMap<>();
+
+    private int connections;
+
+    private int bodySize = 65536;
+
+    private final Counter scrapes;
+
+    private volatile boolean running = true;
+
+    public PrometheusReporter(MetricRegistry registry, String host, int port, String path, int maxConnections) throws IOException {
+        this.path = ascii(path);
+        this.maxConnections = maxConnections;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.scrapes = registry.counter("metjo.prometheus.scrapes");
+        registry.addListener(new Listener());
+        this.thread = new Thread(this, "metjo-prometheus");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                selector.select();
+                for(Iterator<SelectionKey> itor = selector.selectedKeys().iterator(); itor.hasNext(); ) {
+                    SelectionKey key = itor.next();
+                    itor.remove();
+                    try {
+                        if(key.isAcceptable()) {
+                            accept();
+                        } else if(key.isReadable()) {
+                            read(key);
+                        } else if(key.isWritable()) {
+                            write(key);
+                        }
+                    } catch(IOException e) {
+                        // The scraper went away. Failing to accept a connection isn't a reason to stop serving.
+                        //
+                        if(key.channel() != server) {
+                            close(key);
+                        }
+                    } catch(RuntimeException e) {
+                        // Such as a gauge that throws. Only this scrape fails.
+                        //
+                        System.err.println("WARNING: Could not serve Prometheus scrape: " + e);
+                        if(key.channel() != server) {
+                            close(key);
+                        }
+                    }
+                }
+            }
+        } catch(Throwable e) {
+            System.err.println("WARNING: Prometheus endpoint failed: " + e);
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch(IOException e) {
+                    // Nothing we can do about it
+                }
+            }
+            try {
+                selector.close();
+            } catch(IOException e) {
+                // Nothing we can do about it
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if(channel == null) {
+            return;
+        }
+        if(connections >= maxConnections) {
+            channel.close();
+            return;
+        }
+        ++connections;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(bodySize));
+    }
+
+    private void close(SelectionKey key) {
+        // Only count a connection once, however many ways it ends up being closed.
+        //
+        if(key.attach(null) == null) {
+            return;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch(IOException e) {
+            // Nothing we can do about it
+        }
+        --connections;
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        if(((SocketChannel) key.channel()).read(c.request) < 0) {
+            close(key);
+            return;
+        }
+        respond(key, c);
+    }
+
+    /**
+     * Answers the request at the start of the request buffer, if all of it has arrived.
+     */
+    private void respond(SelectionKey key, Connection c) throws IOException {
+        byte[] request = c.request.array();
+        int length = indexOf(request, 0, c.request.position(), CRLFCRLF);
+        if(length < 0) {
+            if(!c.request.hasRemaining()) {
+                close(key);
+            }
+            return;
+        }
+        length += CRLFCRLF.length;
+
+        // Request line: method, path (possibly followed by a query) and version.
+        //
+        int methodEnd = indexOf(request, 0, length, (byte) ' ');
+        int pathEnd = methodEnd > 0 ? indexOf(request, methodEnd + 1, length, (byte) ' ') : -1;
+        int lineEnd = indexOf(request, 0, length, (byte) '\r');
+        if(methodEnd < 0 || pathEnd < 0 || pathEnd > lineEnd) {
+            c.keepAlive = false;
+            c.body.clear().flip();
+            send(key, c, BAD_REQUEST, 0);
+            return;
+        }
+        int query = indexOf(request, methodEnd + 1, pathEnd, (byte) '?');
+        boolean head = equals(request, 0, methodEnd, HEAD);
+        boolean found = (head || equals(request, 0, methodEnd, GET))
+                && equals(request, methodEnd + 1, query >= 0 ? query : pathEnd, path);
+        c.keepAlive = equals(request, pathEnd + 1, lineEnd, HTTP_1_1)
+                && indexOfIgnoreCase(request, lineEnd, length, CONNECTION_CLOSE) < 0;
+
+        // Keep whatever the client has sent after this request.
+        //
+        c.request.flip().position(length);
+        c.request.compact();
+        if(!found) {
+            c.body.clear().flip();
+            send(key, c, NOT_FOUND, 0);
+            return;
+        }
+        encode(c);
+        scrapes.inc();
+        int contentLength = c.body.remaining();
+        if(head) {
+            c.body.clear().flip();
+        }
+        send(key, c, OK, contentLength);
+    }
+
+    /**
+     * Sends a response with whatever is in the body buffer, which is empty unless the metrics were encoded.
+     */
+    private void send(SelectionKey key, Connection c, byte[] status, int contentLength) throws IOException {
+        c.header.clear();
+        c.header.put(status).put(CONTENT_LENGTH);
+        encoder.putLong(c.header, contentLength);
+        c.header.put(c.keepAlive ? KEEP_ALIVE : CLOSE).flip();
+        c.response[0] = c.header;
+        c.response[1] = c.body;
+        write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(c.response);
+        if(c.header.hasRemaining() || c.body.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if(!c.keepAlive) {
+            close(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if(c.request.position() > 0) {
+            respond(key, c);
+        }
+    }
+
+    /**
+     * Writes every metric to the body buffer of a connection, growing it if needed. A grown buffer is kept,
+     * and new connections start out with its size.
+     */
+    private void encode(Connection c) {
+        for(;;) {
+            c.body.clear();
+            try {
+                for(Exported e : metrics.values()) {
+                    metric(c.body, e.name, e.metric);
+                }
+                c.body.flip();
+                return;
+            } catch(BufferOverflowException e) {
+                bodySize = c.body.capacity() * 2;
+                c.body = ByteBuffer.allocateDirect(bodySize);
+            }
+        }
+    }
+
+    private void metric(ByteBuffer b, byte[] n, Metric metric) {
+        if(metric instanceof Gauge) {
+            Object value = ((Gauge) metric).getValue();
+            if(value instanceof Number) {
+                type(b, n, null, GAUGE);
+                sample(b, n, null, ((Number) value).doubleValue());
+            } else if(value instanceof Boolean) {
+                type(b, n, null, GAUGE);
+                sample(b, n, null, (Boolean) value ? 1 : 0);
+            }
+        } else if(metric instanceof Counter) {
+            type(b, n, TOTAL, COUNTER);
+            sample(b, n, TOTAL, ((Counter) metric).getCount());
+        } else if(metric instanceof Timer) {
+            Timer t = (Timer) metric;
+            summary(b, n, t.getSnapshot(), t.getCount(), 1e-9);
+        } else if(metric instanceof Histogram) {
+            Histogram h = (Histogram) metric;
+            summary(b, n, h.getSnapshot(), h.getCount(), 1);
+        } else if(metric instanceof Meter) {
+            type(b, n, TOTAL, COUNTER);
+            sample(b, n, TOTAL, ((Meter) metric).getCount());
+        }
+    }
+
+    private void summary(ByteBuffer b, byte[] n, Snapshot s, long count, double scale) {
+        type(b, n, null, SUMMARY);
+        quantile(b, n, 0, s.getMedian() * scale);
+        quantile(b, n, 1, s.get75thPercentile() * scale);
+        quantile(b, n, 2, s.get95thPercentile() * scale);
+        quantile(b, n, 3, s.get98thPercentile() * scale);
+        quantile(b, n, 4, s.get99thPercentile() * scale);
+        quantile(b, n, 5, s.get999thPercentile() * scale);
+
+        // Neither timers nor histograms keep a sum, so it's worked out from the mean of the snapshot.
+        //
+        b.put(n).put(SUM);
+        value(b, s.getMean() * count * scale);
+        b.put((byte) '\n');
+        b.put(n).put(COUNT);
+        encoder.putLong(b, count);
+        b.put((byte) '\n');
+    }
+
+    private void type(ByteBuffer b, byte[] n, byte[] suffix, byte[] type) {
+        b.put(TYPE).put(n);
+        if(suffix != null) {
+            b.put(suffix);
+        }
+        b.put(type);
+    }
+
+    private void sample(ByteBuffer b, byte[] n, byte[] suffix, double value) {
+        b.put(n);
+        if(suffix != null) {
+            b.put(suffix);
+        }
+        b.put((byte) ' ');
+        value(b, value);
+        b.put((byte) '\n');
+    }
+
+    private void quantile(ByteBuffer b, byte[] n, int quantile, double value) {
+        b.put(n).put(QUANTILES[quantile]);
+        value(b, value);
+        b.put((byte) '\n');
+    }
+
+    private void value(ByteBuffer b, double value) {
+        if(Double.isNaN(value)) {
+            TextEncoder.putAscii(b, "NaN");
+        } else if(Double.isInfinite(value)) {
+            TextEncoder.putAscii(b, value > 0 ? "+Inf" : "-Inf");
+        } else {
+            encoder.putDouble(b, value, 9);
+        }
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte b) {
+        for(int i = from; i < to; ++i) {
+            if(buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte[] pattern) {
+        outer:
+        for(int i = from; i <= to - pattern.length; ++i) {
+            for(int j = 0; j < pattern.length; ++j) {
+                if(buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Like indexOf, but for a lower case pattern that may appear in any case.
+     */
+    private static int indexOfIgnoreCase(byte[] buffer, int from, int to, byte[] pattern) {
+        outer:
+        for(int i = from; i <= to - pattern.length; ++i) {
+            for(int j = 0; j < pattern.length; ++j) {
+                byte b = buffer[i + j];
+                if((b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean equals(byte[] buffer, int from, int to, byte[] s) {
+        return to - from == s.length && indexOf(buffer, from, to, s) == from;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
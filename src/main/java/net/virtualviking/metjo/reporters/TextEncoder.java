@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes numbers as ASCII text straight into byte buffers, without going through Strings. Keeps a scratch
+ * array for the digits, so an instance must only be used by one thread at a time.
+ */
+final class TextEncoder {
+    private final byte[] digits = new byte[20];
+
+    void putLong(ByteBuffer b, long v) {
+        // Work with negative numbers, so that Long.MIN_VALUE doesn't need special treatment.
+        //
+        if(v < 0) {
+            b.put((byte) '-');
+        } else {
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' - v % 10);
+            v /= 10;
+        } while(v != 0);
+        b.put(digits, i, digits.length - i);
+    }
+
+    /**
+     * Writes a double with up to the given number of decimals, which must be less than 18. Values too large
+     * to be scaled to a long are written with Double.toString.
+     */
+    void putDouble(ByteBuffer b, double v, int decimals) {
+        long unit = pow10(decimals);
+        if(Math.abs(v) >= 1e18 / unit) {
+            putAscii(b, Double.toString(v));
+            return;
+        }
+        long scaled = Math.round(v * unit);
+        if(scaled < 0) {
+            b.put((byte) '-');
+            scaled = -scaled;
+        }
+        putLong(b, scaled / unit);
+        long fraction = scaled % unit;
+        if(fraction == 0) {
+            return;
+        }
+        int n = decimals;
+        while(fraction % 10 == 0) {
+            fraction /= 10;
+            --n;
+        }
+        b.put((byte) '.');
+        for(long p = pow10(n - 1); p > fraction; p /= 10) {
+            b.put((byte) '0');
+        }
+        putLong(b, fraction);
+    }
+
+    static void putAscii(ByteBuffer b, String s) {
+        for(int i = 0; i < s.length(); ++i) {
+            b.put((byte) s.charAt(i));
+        }
+    }
+
+    private static long pow10(int n) {
+        long p = 1;
+        while(n-- > 0) {
+            p *= 10;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hammers the probes and the aggregations from many threads at once and checks that no update is lost.
+ */
+public class ConcurrentUpdateTest {
+    private static final int THREADS = 16;
+
+    private static final int CALLS = 100000;
+
+    private interface Work {
+        void run(int thread, int i) throws Exception;
+    }
+
+    private static void runThreads(Work work) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS + 1);
+        List<Thread> threads = new ArrayList<>();
+        Throwable[] failure = new Throwable[1];
+        for(int t = 0; t < THREADS; ++t) {
+            int thread = t;
+            Thread th = new Thread(() -> {
+                try {
+                    barrier.await();
+                    for(int i = 0; i < CALLS; ++i) {
+                        work.run(thread, i);
+                    }
+                } catch(Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        barrier.await();
+        for(Thread th : threads) {
+            th.join();
+        }
+        if(failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test
+    public void probesCountEveryCall() throws Exception {
+        Timer outerTimer = new Timer(new SlidingWindowReservoir(1024));
+        Timer innerTimer = new Timer(new SlidingWindowReservoir(1024));
+        int outer = MethodEntryListener.registerMethod(new MethodMetrics("concurrent.outer", "test.Concurrent.outer", outerTimer));
+        int inner = MethodEntryListener.registerMethod(new MethodMetrics("concurrent.inner", "test.Concurrent.inner", innerTimer));
+        runThreads((thread, i) -> {
+            MethodEntryListener.onMethodEntry(outer);
+            MethodEntryListener.onMethodEntry(inner);
+            MethodEntryListener.onMethodExit();
+            MethodEntryListener.onMethodEntry(inner);
+            MethodEntryListener.onMethodExit();
+            MethodEntryListener.onMethodExit();
+        });
+        assertEquals((long) THREADS * CALLS, outerTimer.getCount());
+        assertEquals(2L * THREADS * CALLS, innerTimer.getCount());
+    }
+
+    @Test
+    public void aggregationsLoseNoUpdates() throws Exception {
+        SummationGauge sum = new SummationGauge();
+        MinimumGauge min = new MinimumGauge();
+        MaximumGauge max = new MaximumGauge();
+        Counter counter = new Counter();
+        Meter meter = new Meter();
+        List<Updateable> receivers = Arrays.asList(sum, min, max, new CounterWrapper(counter), new MeterWrapper(meter));
+        runThreads((thread, i) -> {
+            long value = (long) thread * CALLS + i;
+            for(Updateable r : receivers) {
+                r.update(value);
+            }
+        });
+        long n = (long) THREADS * CALLS;
+        assertEquals(n * (n - 1) / 2, sum.getValue());
+        assertEquals(0L, min.getValue());
+        assertEquals(n - 1, max.getValue());
+        assertEquals(n, counter.getCount());
+        assertEquals(n * (n - 1) / 2, meter.getCount());
+    }
+}
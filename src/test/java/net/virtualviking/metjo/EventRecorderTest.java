@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that recordings hold up when the outlier recorder keeps more parameters than a record has room for.
+ */
+public class EventRecorderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void extraParametersAreLeftOut() throws Exception {
+        File file = new File(folder.getRoot(), "recording.bin");
+        Map<Object, Object> recorderConfig = new HashMap<>();
+        recorderConfig.put("file", file.getPath());
+        recorderConfig.put("regions", 1);
+        recorderConfig.put("parameters", 1);
+        recorderConfig.put("regionSize", 144);
+        EventRecorder recorder = new EventRecorder(recorderConfig);
+        Map<Object, Object> outlierConfig = new HashMap<>();
+        outlierConfig.put("patterns", Collections.singletonList("test.Recording.*"));
+        outlierConfig.put("parameters", 4);
+        OutlierRecorder outliers = new OutlierRecorder(new MetricRegistry(), outlierConfig);
+
+        List<MetjoTransformer.CapturedParameter> parameters = new ArrayList<>();
+        for(int i = 0; i < 4; ++i) {
+            parameters.add(new MetjoTransformer.CapturedParameter(i, "p" + i, new SummationGauge()));
+        }
+        MethodMetrics m = new MethodMetrics("recording.call", "test.Recording.call", new Timer());
+        m.configure(parameters, 1, 0);
+        int id = MethodEntryListener.registerMethod(m);
+
+        // Threads pick up the recorders the first time they enter a method, so use one of our own.
+        //
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        MethodEntryListener.setEventRecorder(recorder);
+        MethodEntryListener.setOutlierRecorder(outliers);
+        try {
+            Thread t = new Thread(() -> {
+                try {
+                    for(int call = 0; call < 5; ++call) {
+                        MethodEntryListener.onMethodEntry(id);
+                        for(int slot = 0; slot < 4; ++slot) {
+                            MethodEntryListener.captureLong(id, slot, 10 * call + slot);
+                        }
+                        MethodEntryListener.onMethodExit();
+                    }
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            });
+            t.start();
+            t.join();
+        } finally {
+            MethodEntryListener.setEventRecorder(null);
+            MethodEntryListener.setOutlierRecorder(null);
+        }
+        assertNull(failure.get());
+
+        // The region holds the last two calls, each with its first parameter.
+        //
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            int recordSize = map.getInt(12);
+            int region = EventRecorder.HEADER_SIZE;
+            assertEquals(5, map.getLong(region + 8));
+            for(int call = 3; call < 5; ++call) {
+                int p = region + EventRecorder.REGION_HEADER_SIZE + (call % 2) * recordSize;
+                assertEquals(id, map.getInt(p + 24));
+                assertEquals(1, map.getInt(p + 28));
+                assertEquals(10 * call, map.getLong(p + EventRecorder.RECORD_HEADER_SIZE));
+            }
+        }
+    }
+
+    @Test
+    public void numbersKeepTheirKindPerCall() throws Exception {
+        File file = new File(folder.getRoot(), "kinds.bin");
+        Map<Object, Object> recorderConfig = new HashMap<>();
+        recorderConfig.put("file", file.getPath());
+        recorderConfig.put("regions", 1);
+        EventRecorder recorder = new EventRecorder(recorderConfig);
+        MethodMetrics m = new MethodMetrics("kinds.call", "test.Kinds.call", new Timer());
+        m.configure(Collections.singletonList(new MetjoTransformer.CapturedParameter(0, "n", new SummationGauge())), 1, 0);
+        int id = MethodEntryListener.registerMethod(m);
+
+        // A parameter declared as a Number gets an integer on one call and a double on the next.
+        //
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        MethodEntryListener.setEventRecorder(recorder);
+        try {
+            Thread t = new Thread(() -> {
+                try {
+                    for(Number n : new Number[] { 3, 2.5, 7L }) {
+                        MethodEntryListener.onMethodEntry(id);
+                        MethodEntryListener.captureObject(id, 0, n);
+                        MethodEntryListener.onMethodExit();
+                    }
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            });
+            t.start();
+            t.join();
+        } finally {
+            MethodEntryListener.setEventRecorder(null);
+        }
+        assertNull(failure.get());
+        recorder.run();
+
+        ByteArrayOutputStream timeline = new ByteArrayOutputStream();
+        new RecordingReader(file).printTimeline(new PrintStream(timeline, true, "UTF-8"));
+        List<String> values = new ArrayList<>();
+        for(String line : timeline.toString("UTF-8").split("\n")) {
+            if(line.contains("test.Kinds.call")) {
+                values.add(line.substring(line.indexOf('(')).trim());
+            }
+        }
+        assertEquals(Arrays.asList("(n=3)", "(n=2.5)", "(n=7)"), values);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HdrReservoirTest {
+    @Test
+    public void readingDoesNotRollTheInterval() {
+        HdrReservoir r = new HdrReservoir(3);
+        r.update(10);
+        r.update(20);
+        assertEquals(0, r.getSnapshot().size());
+        r.roll();
+        Snapshot first = r.getSnapshot();
+        r.update(30);
+        assertSame(first, r.getSnapshot());
+        assertArrayEquals(new long[] { 10, 20 }, first.getValues());
+        r.roll();
+        assertArrayEquals(new long[] { 30 }, r.getSnapshot().getValues());
+    }
+
+    @Test
+    public void readingRollsOnceAnIntervalHasEnded() {
+        AtomicLong now = new AtomicLong(1000);
+        HdrReservoir.Interval interval = new HdrReservoir.Interval(100, now::get);
+        HdrReservoir r = new HdrReservoir(3, interval);
+        r.update(10);
+        now.set(1099);
+        assertEquals(0, r.getSnapshot().size());
+        now.set(1100);
+        Snapshot first = r.getSnapshot();
+        assertArrayEquals(new long[] { 10 }, first.getValues());
+
+        // Everyone reading during the interval gets the same values.
+        //
+        r.update(20);
+        now.set(1199);
+        assertSame(first, r.getSnapshot());
+        now.set(1250);
+        assertArrayEquals(new long[] { 20 }, r.getSnapshot().getValues());
+    }
+
+    @Test
+    public void valuesAreDownsampled() {
+        HdrReservoir r = new HdrReservoir(3);
+        for(int i = 1; i <= 1000000; ++i) {
+            r.update(i);
+        }
+        r.roll();
+        Snapshot s = r.getSnapshot();
+        long[] values = s.getValues();
+        assertEquals(1000000, s.size());
+        assertEquals(HdrReservoir.MAX_VALUES, values.length);
+        for(int i = 1; i < values.length; ++i) {
+            assertTrue(values[i - 1] <= values[i]);
+        }
+
+        // Each value is the middle of a thousandth or so of the range, within the precision of the histogram.
+        //
+        assertEquals(500000, values[values.length / 2], 1000);
+        assertEquals(1000000.0 / HdrReservoir.MAX_VALUES / 2, values[0], 10);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Instruments a jar ahead of time and runs it in a JVM of its own, without the agent.
+ */
+public class OfflineInstrumenterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File config(String name, String include) throws IOException {
+        File config = folder.newFile(name);
+        Files.write(config.toPath(), ("reporter: console\n"
+                + "properties:\n"
+                + "  period: 3600\n"
+                + "includes:\n"
+                + "  - \"" + include + "\"\n").getBytes(StandardCharsets.UTF_8));
+        return config;
+    }
+
+    /**
+     * Writes an application jar and a library jar. The main class calls a method of each, and then prints
+     * the counts of their timers. The application has a method that takes a type that isn't in either jar.
+     */
+    private File[] fixture() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(MethodEntryListener.class));
+        pool.makeClass("fixture.Missing");
+        CtClass calc = pool.makeClass("fixture.Calc");
+        calc.addMethod(CtNewMethod.make("public static int add(int a, int b) { return a + b; }", calc));
+        calc.addMethod(CtNewMethod.make("public static int size(fixture.Missing m) { return m == null ? 0 : 1; }", calc));
+        CtClass lib = pool.makeClass("fixture.Lib");
+        lib.addMethod(CtNewMethod.make("public static int mul(int a, int b) { return a * b; }", lib));
+        CtClass main = pool.makeClass("fixture.Main");
+        main.addMethod(CtNewMethod.make("private static void print(String name) {"
+                + "  for (int id = 0; id < net.virtualviking.metjo.MethodEntryListener.getMethodCount(); ++id) {"
+                + "    net.virtualviking.metjo.MethodMetrics m = net.virtualviking.metjo.MethodEntryListener.getMethod(id);"
+                + "    if (m != null && m.getFullMethodName().equals(name)) {"
+                + "      System.out.println(name + \" \" + m.getTimer().getCount());"
+                + "    }"
+                + "  }"
+                + "}", main));
+        main.addMethod(CtNewMethod.make("public static void main(String[] args) {"
+                + "  int sum = 0;"
+                + "  int products = 0;"
+                + "  for (int i = 0; i < 10; ++i) { sum += fixture.Calc.add(i, 1); products += fixture.Lib.mul(i, 2); }"
+                + "  System.out.println(sum);"
+                + "  System.out.println(products);"
+                + "  print(\"fixture.Calc.add\");"
+                + "  print(\"fixture.Lib.mul\");"
+                + "}", main));
+        return new File[] { jar("app.jar", main, calc), jar("lib.jar", lib) };
+    }
+
+    private File jar(String name, CtClass... classes) throws Exception {
+        File jar = folder.newFile(name);
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            for (CtClass c : classes) {
+                out.putNextEntry(new JarEntry(c.getName().replace('.', '/') + ".class"));
+                out.write(c.toBytecode());
+            }
+        }
+        return jar;
+    }
+
+    private static String run(File... jars) throws Exception {
+        StringBuilder classpath = new StringBuilder(System.getProperty("java.class.path"));
+        for (File jar : jars) {
+            classpath.append(File.pathSeparator).append(jar.getPath());
+        }
+        ProcessBuilder pb = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", classpath.toString(), "fixture.Main");
+        pb.environment().remove("METJO_CONFIG");
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process p = pb.start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(OfflineInstrumenter.readAll(in), StandardCharsets.UTF_8);
+        }
+        assertEquals(0, p.waitFor());
+        return output;
+    }
+
+    private static void instrument(File config, File in, File out) throws Exception {
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(config, Collections.singletonList(in), 2);
+        try {
+            instrumenter.instrument(in, out);
+        } finally {
+            instrumenter.close();
+        }
+    }
+
+    @Test
+    public void instrumentedJarRunsWithoutAgent() throws Exception {
+        File[] in = fixture();
+        File out = new File(folder.getRoot(), "app-instrumented.jar");
+        instrument(config("metjo.yaml", "fixture.Calc.add"), in[0], out);
+        assertEquals(String.format("55%n90%nfixture.Calc.add 10%n"), run(out, in[1]));
+    }
+
+    @Test
+    public void jarsOfSeparateRunsAreBothTimed() throws Exception {
+        File[] in = fixture();
+        File app = new File(folder.getRoot(), "app-instrumented.jar");
+        File lib = new File(folder.getRoot(), "lib-instrumented.jar");
+        instrument(config("app.yaml", "fixture.Calc.add"), in[0], app);
+        instrument(config("lib.yaml", "fixture.Lib.mul"), in[1], lib);
+        assertEquals(String.format("55%n90%nfixture.Calc.add 10%nfixture.Lib.mul 10%n"), run(app, lib));
+    }
+
+    @Test
+    public void failedRunWritesNothing() throws Exception {
+        File in = fixture()[0];
+        File out = new File(folder.getRoot(), "app-instrumented.jar");
+        // Compiling the probes of size needs the type of its argument, which can't be found.
+        //
+        try {
+            instrument(config("metjo.yaml", "fixture.Calc.*"), in, out);
+            fail("Expected the run to fail");
+        } catch (MetjoException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Could not instrument 1 "));
+        }
+        assertFalse(out.exists());
+    }
+
+    @Test
+    public void idsFollowClassNames() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        File in = folder.newFile("classes.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(in.toPath()))) {
+            for (int i = 19; i >= 0; --i) {
+                CtClass c = pool.makeClass(String.format("fixture.Calc%02d", i));
+                c.addMethod(CtNewMethod.make("public static int add(int a, int b) { return a + b; }", c));
+                out.putNextEntry(new JarEntry(c.getName().replace('.', '/') + ".class"));
+                out.write(c.toBytecode());
+            }
+        }
+        File out = new File(folder.getRoot(), "classes-instrumented.jar");
+        instrument(config("metjo.yaml", "fixture.Calc*"), in, out);
+
+        List<String> names = new ArrayList<>();
+        try (JarFile jar = new JarFile(out)) {
+            JarEntry entry = jar.stream().filter(e -> e.getName().endsWith(OfflineInstrumenter.TABLE_SUFFIX)).findFirst().get();
+            try (InputStream table = jar.getInputStream(entry)) {
+                for (String line : new String(OfflineInstrumenter.readAll(table), StandardCharsets.UTF_8).split("\n")) {
+                    String[] parts = line.split("\t");
+                    assertEquals(line, names.size(), Integer.parseInt(parts[0]));
+                    names.add(parts[2]);
+                }
+            }
+        }
+        assertEquals(20, names.size());
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that captured float and double arguments keep their fractions where the aggregation can hold them.
+ */
+public class ParameterCaptureTest {
+    @Test
+    public void doublesKeepTheirFractions() {
+        SummationGauge sum = new SummationGauge();
+        MaximumGauge max = new MaximumGauge();
+        MinimumGauge min = new MinimumGauge();
+        MethodMetrics m = new MethodMetrics("capture.doubles", "test.Capture.doubles", new Timer());
+        m.configure(Arrays.asList(new MetjoTransformer.CapturedParameter(0, "sum", sum),
+                new MetjoTransformer.CapturedParameter(0, "max", max),
+                new MetjoTransformer.CapturedParameter(0, "min", min)), 1, 0);
+        int id = MethodEntryListener.registerMethod(m);
+        for(double value : new double[] { 0.9, 0.2, 0.4 }) {
+            MethodEntryListener.onMethodEntry(id);
+            MethodEntryListener.captureDouble(id, 0, value);
+            MethodEntryListener.captureDouble(id, 1, value);
+            MethodEntryListener.captureObject(id, 2, value);
+            MethodEntryListener.onMethodExit();
+        }
+        assertEquals(1.5, sum.getValue().doubleValue(), 1e-9);
+        assertEquals(0.9, max.getValue().doubleValue(), 0);
+        assertEquals(0.2, min.getValue().doubleValue(), 0);
+    }
+
+    @Test
+    public void wholeValuesStayExact() {
+        SummationGauge sum = new SummationGauge();
+        MaximumGauge max = new MaximumGauge();
+        sum.update(Long.MAX_VALUE - 1);
+        max.update(Long.MAX_VALUE - 1);
+        assertEquals(Long.MAX_VALUE - 1, sum.getValue());
+        assertEquals(Long.MAX_VALUE - 1, max.getValue());
+        max.update(0.5);
+        assertEquals((double) (Long.MAX_VALUE - 1), max.getValue().doubleValue(), 0);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PatternMatcherTest {
+    @Test
+    public void matchesWildcards() {
+        PatternMatcher m = new PatternMatcher(Arrays.asList("com.foo.*", "com.bar.Baz.get?", "*.Util.*"));
+        assertTrue(m.matches("com.foo.Bar.run"));
+        assertTrue(m.matches("com.bar.Baz.getX"));
+        assertFalse(m.matches("com.bar.Baz.getXY"));
+        assertTrue(m.matches("org.Util.clear"));
+        assertFalse(m.matches("org.Utility.clear"));
+        assertTrue(m.matchesPrefix("net."));
+
+        PatternMatcher prefixes = new PatternMatcher(Arrays.asList("com.foo.*", "com.bar.Baz.get?"));
+        assertTrue(prefixes.matchesPrefix("com.ba"));
+        assertFalse(prefixes.matchesPrefix("net."));
+    }
+
+    /**
+     * A pattern like "*a" followed by n '?' needs 2^n states, which is more than are kept, so this checks
+     * that states that aren't kept still match correctly.
+     */
+    @Test
+    public void matchesBeyondTheStateLimit() {
+        String pattern = "*a?????????????";
+        PatternMatcher m = new PatternMatcher(Arrays.asList(pattern));
+        Pattern regex = Pattern.compile(".*a.{13}");
+        Random random = new Random(42);
+        for(int i = 0; i < 20000; ++i) {
+            char[] name = new char[20 + random.nextInt(20)];
+            for(int k = 0; k < name.length; ++k) {
+                name[k] = random.nextBoolean() ? 'a' : 'b';
+            }
+            String s = new String(name);
+            assertEquals(s, regex.matcher(s).matches(), m.matches(s));
+        }
+    }
+}
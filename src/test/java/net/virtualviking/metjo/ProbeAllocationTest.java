@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that entering and leaving instrumented methods doesn't allocate once the per-thread arrays have
+ * grown to the depth of the calls.
+ */
+public class ProbeAllocationTest {
+    private static final int CALLS = 1000000;
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void call(int outer, int inner, int depth) {
+        MethodEntryListener.onMethodEntry(outer);
+        for(int d = 0; d < depth; ++d) {
+            MethodEntryListener.onMethodEntry(inner);
+        }
+        for(int d = 0; d < depth; ++d) {
+            MethodEntryListener.onMethodExit();
+        }
+        MethodEntryListener.onMethodExit();
+    }
+
+    @Test
+    public void probesDoNotAllocate() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        // The default reservoir allocates a sample per update, so use a sliding window, which writes into an
+        // array it has from the start.
+        //
+        Timer outerTimer = new Timer(new SlidingWindowReservoir(1024));
+        Timer innerTimer = new Timer(new SlidingWindowReservoir(1024));
+        int outer = MethodEntryListener.registerMethod(new MethodMetrics("allocation.outer", "test.Allocation.outer", outerTimer));
+        int inner = MethodEntryListener.registerMethod(new MethodMetrics("allocation.inner", "test.Allocation.inner", innerTimer));
+
+        // Grow the stack beyond its initial size and let the JIT settle.
+        //
+        for(int i = 0; i < CALLS; ++i) {
+            call(outer, inner, i % 100 == 0 ? 100 : 3);
+        }
+        long overhead = allocatedBytes(bean);
+        overhead = allocatedBytes(bean) - overhead;
+        long before = allocatedBytes(bean);
+        for(int i = 0; i < CALLS; ++i) {
+            call(outer, inner, 3);
+        }
+        long allocated = allocatedBytes(bean) - before - overhead;
+        assertEquals(2L * CALLS, outerTimer.getCount());
+        assertTrue("Allocated " + allocated + " bytes in " + 4 * CALLS + " calls", allocated < 1024);
+    }
+}
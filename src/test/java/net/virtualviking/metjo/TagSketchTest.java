@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that primitive arguments are bucketed like their boxed values, and without boxing them once the
+ * sketch has settled.
+ */
+public class TagSketchTest {
+    private static final int CALLS = 1000000;
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    private TagSketch sketch(int maxValues) {
+        return new TagSketch(0, "test.", maxValues, 2, registry::timer);
+    }
+
+    @Test
+    public void longValuesGetTimers() {
+        TagSketch tags = sketch(2);
+        assertEquals(TagSketch.OTHER, tags.bucket(7L));
+        int seven = tags.bucket(7L);
+        assertNotEquals(TagSketch.OTHER, seven);
+        assertEquals(seven, tags.bucket(7L));
+        assertEquals(seven, tags.bucket((Object) 7L));
+        assertTrue(registry.getTimers().containsKey("test.7"));
+    }
+
+    @Test
+    public void doubleValuesGetTimers() {
+        TagSketch tags = sketch(2);
+        tags.bucket(0.5);
+        int half = tags.bucket(0.5);
+        assertNotEquals(TagSketch.OTHER, half);
+        assertEquals(half, tags.bucket(0.5));
+        assertEquals(TagSketch.OTHER, tags.bucket(-0.5));
+        assertTrue(registry.getTimers().containsKey("test.0_5"));
+    }
+
+    @Test
+    public void settledSketchDoesNotAllocate() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        TagSketch tags = sketch(2);
+        for(int i = 0; i < CALLS; ++i) {
+            tags.bucket(1000L + i % 2);
+        }
+        long before = bean.getThreadAllocatedBytes(thread);
+        int sum = 0;
+        for(int i = 0; i < CALLS; ++i) {
+            // Promoted values and, now that every timer is taken, all others.
+            //
+            sum += tags.bucket(1000L + i % 4);
+        }
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        assertEquals(CALLS / 4 * 3, sum);
+        assertTrue("Allocated " + allocated + " bytes in " + CALLS + " calls", allocated < 1024);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the reporter against a fake proxy listening on a local socket.
+ */
+public class NioWavefrontReporterTest {
+    private static final Pattern LINE = Pattern.compile("([\\w.\\-/,]+) (-?\\d+(?:\\.\\d+)?) (\\d+) source=\"test-host\" dc=\"lab\"");
+
+    private ServerSocket proxy;
+
+    private MetricRegistry registry;
+
+    private NioWavefrontReporter reporter;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxy.setSoTimeout(10000);
+        registry = new MetricRegistry();
+        reporter = new NioWavefrontReporter(registry, InetAddress.getLoopbackAddress().getHostAddress(),
+                proxy.getLocalPort(), "test-host", Collections.singletonMap("dc", "lab"), 4096, 8, 10, 100, 5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reporter.stop();
+        proxy.close();
+    }
+
+    /**
+     * Reads lines until one for the metric arrives and returns its value.
+     */
+    private static String readPoint(BufferedReader in, String metric) throws IOException {
+        String line;
+        while((line = in.readLine()) != null) {
+            Matcher m = LINE.matcher(line);
+            assertTrue("Malformed line: " + line, m.matches());
+            long timestamp = Long.parseLong(m.group(3));
+            assertTrue(Math.abs(timestamp - System.currentTimeMillis() / 1000) < 60);
+            if(m.group(1).equals(metric)) {
+                return m.group(2);
+            }
+        }
+        fail("Connection closed before " + metric + " arrived");
+        return null;
+    }
+
+    @Test
+    public void sendsLinesInWavefrontFormat() throws IOException {
+        registry.counter("orders.placed").inc(5);
+        registry.register("queue size", (com.codahale.metrics.Gauge<Double>) () -> 2.5);
+        registry.timer("orders.latency").update(3, TimeUnit.MILLISECONDS);
+        reporter.start(100, TimeUnit.MILLISECONDS);
+        try (Socket s = proxy.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            assertEquals("5", readPoint(in, "orders.placed.count"));
+            assertEquals("2.5", readPoint(in, "queue_size"));
+            assertEquals("3", readPoint(in, "orders.latency.max"));
+        }
+    }
+
+    @Test
+    public void reconnectsWhenTheProxyGoesAway() throws IOException {
+        registry.counter("orders.placed").inc(5);
+        reporter.start(50, TimeUnit.MILLISECONDS);
+        try (Socket s = proxy.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            assertEquals("5", readPoint(in, "orders.placed.count"));
+        }
+
+        // Writing to the closed connection fails sooner or later, after which the reporter connects again.
+        //
+        registry.counter("orders.placed").inc(2);
+        try (Socket s = proxy.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            assertEquals("7", readPoint(in, "orders.placed.count"));
+        }
+        assertTrue(registry.counter("metjo.wavefront.sent").getCount() > 0);
+    }
+
+    @Test
+    public void keepsReportingWhileTheProxyIsDown() throws IOException, InterruptedException {
+        int port = proxy.getLocalPort();
+        proxy.close();
+        registry.counter("orders.placed").inc(1);
+        reporter.start(20, TimeUnit.MILLISECONDS);
+        Thread.sleep(300);
+        assertEquals(0, registry.counter("metjo.wavefront.sent").getCount());
+
+        // Points queued while the proxy was down are sent once it's back.
+        //
+        proxy = new ServerSocket();
+        proxy.setReuseAddress(true);
+        proxy.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        proxy.setSoTimeout(10000);
+        try (Socket s = proxy.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            assertEquals("1", readPoint(in, "orders.placed.count"));
+        }
+    }
+}
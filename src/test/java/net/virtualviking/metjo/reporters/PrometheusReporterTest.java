@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2017 Pontus Rydin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.virtualviking.metjo.reporters;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Scrapes the reporter over HTTP and checks what comes back against the text exposition format.
+ */
+public class PrometheusReporterTest {
+    private static final Pattern TYPE = Pattern.compile("# TYPE [a-zA-Z_:][a-zA-Z0-9_:]* (gauge|counter|summary)");
+
+    private static final Pattern SAMPLE = Pattern.compile("([a-zA-Z_:][a-zA-Z0-9_:]*)(\\{quantile=\"[0-9.]+\"\\})? \\S+");
+
+    private MetricRegistry registry;
+
+    private PrometheusReporter reporter;
+
+    @Before
+    public void setUp() throws IOException {
+        registry = new MetricRegistry();
+        reporter = new PrometheusReporter(registry, InetAddress.getLoopbackAddress().getHostAddress(), 0, "/metrics", 4);
+        reporter.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reporter.close();
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), reporter.getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private String scrape() throws IOException {
+        HttpURLConnection connection = get("/metrics");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType(), connection.getContentType().startsWith("text/plain; version=0.0.4"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        }
+        assertEquals(connection.getContentLength(), body.size());
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void servesExpositionFormat() throws IOException {
+        registry.counter("requests.served").inc(3);
+        registry.meter("requests.rate").mark(2);
+        registry.register("queue.size", (Gauge<Integer>) () -> 7);
+        registry.timer("request.time").update(2, TimeUnit.SECONDS);
+        registry.histogram("request.size").update(100);
+
+        String body = scrape();
+        Set<String> types = new HashSet<>();
+        Set<String> series = new HashSet<>();
+        for(String line : body.split("\n")) {
+            if(line.startsWith("#")) {
+                assertTrue(line, TYPE.matcher(line).matches());
+                assertTrue("Duplicate " + line, types.add(line.split(" ")[2]));
+            } else {
+                assertTrue(line, SAMPLE.matcher(line).matches());
+                assertTrue("Duplicate " + line, series.add(line.substring(0, line.lastIndexOf(' '))));
+            }
+        }
+        assertTrue(body, body.contains("# TYPE requests_served_total counter\nrequests_served_total 3\n"));
+        assertTrue(body, body.contains("# TYPE requests_rate_total counter\nrequests_rate_total 2\n"));
+        assertTrue(body, body.contains("# TYPE queue_size gauge\nqueue_size 7\n"));
+        assertTrue(body, body.contains("# TYPE request_time summary\n"));
+        assertTrue(body, body.contains("request_time{quantile=\"0.5\"} 2\n"));
+        assertTrue(body, body.contains("request_time_sum 2\nrequest_time_count 1\n"));
+        assertTrue(body, body.contains("request_size_sum 100\nrequest_size_count 1\n"));
+    }
+
+    @Test
+    public void servesOneOfCollidingNames() throws IOException {
+        registry.counter("a.b").inc();
+        registry.counter("a_b").inc(2);
+        registry.timer("c").update(1, TimeUnit.SECONDS);
+        registry.register("c_count", (Gauge<Integer>) () -> 5);
+
+        String body = scrape();
+        assertTrue(body, body.contains("a_b_total 1\n"));
+        assertTrue(body, !body.contains("a_b_total 2\n"));
+        assertTrue(body, body.contains("c_count 1\n"));
+        assertTrue(body, !body.contains("c_count 5\n"));
+
+        // A metric that was skipped stays skipped, but the name is free for metrics added later.
+        //
+        registry.remove("a.b");
+        registry.counter("a_b").inc();
+        body = scrape();
+        assertTrue(body, !body.contains("a_b_total"));
+        registry.remove("a_b");
+        registry.counter("a_b").inc(4);
+        assertTrue(scrape().contains("a_b_total 4\n"));
+    }
+
+    @Test
+    public void answersOtherPathsWithNotFound() throws IOException {
+        assertEquals(404, get("/other").getResponseCode());
+        assertEquals(404, get("/metricsx").getResponseCode());
+        HttpURLConnection post = get("/metrics");
+        post.setRequestMethod("POST");
+        post.setDoOutput(true);
+        post.getOutputStream().close();
+        assertEquals(404, post.getResponseCode());
+        assertEquals(200, get("/metrics?name=x").getResponseCode());
+    }
+
+    @Test
+    public void keepsServingAfterFailedScrape() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        registry.register("flaky", (Gauge<Integer>) () -> {
+            if(failing.get()) {
+                throw new IllegalStateException("Not ready");
+            }
+            return 1;
+        });
+        try {
+            get("/metrics").getResponseCode();
+            fail("Expected the scrape to fail");
+        } catch(IOException e) {
+            // The connection is closed without a response.
+        }
+        failing.set(false);
+        assertTrue(scrape().contains("flaky 1\n"));
+    }
+
+    @Test
+    public void servesMoreScrapesThanConnections() throws IOException {
+        for(int i = 0; i < 20; ++i) {
+            HttpURLConnection connection = get("/metrics");
+            connection.setRequestProperty("Connection", "close");
+            assertEquals(200, connection.getResponseCode());
+            connection.getInputStream().close();
+        }
+        assertEquals(20, registry.counter("metjo.prometheus.scrapes").getCount());
+    }
+}